@@ -29,6 +29,7 @@ import java.security.GeneralSecurityException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -58,6 +59,10 @@ public class ACCinaPDF {
 
         if (GraphicsEnvironment.isHeadless()) {
             // Headless
+            CCSignatureSettings defaultSettings = new CCSignatureSettings(false);
+            if (args.length >= 1 && "sign".equals(args[0])) {
+                System.exit(new CommandLineSigner(defaultSettings).run(Arrays.copyOfRange(args, 1, args.length)));
+            }
             // Erro 
             String fich;
             if (args.length != 1) {
@@ -0,0 +1,366 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package accinapdf;
+
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import controller.Bundle;
+import controller.CCInstance;
+import controller.SignaturePipeline;
+import controller.TimestampService;
+import exception.AliasException;
+import exception.KeyStoreNotLoadedException;
+import exception.LibraryNotFoundException;
+import exception.LibraryNotLoadedException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import listener.SignatureCancelListener;
+import listener.SignatureListener;
+import model.CCAlias;
+import model.CCSignatureSettings;
+
+/**
+ * Headless "sign" subcommand:
+ * <pre>
+ * sign [options] &lt;file | directory | glob&gt;...
+ *   -o, --output &lt;dir&gt;        destination folder (default: next to each file)
+ *   -r, --reason &lt;text&gt;
+ *   -l, --location &lt;text&gt;
+ *   -v, --visible &lt;llx,lly,urx,ury&gt;   visible signature rectangle, in points
+ *   -p, --page &lt;n&gt;            page of the visible signature (default: 1)
+ *   -c, --certify &lt;none|nochanges|forms|annotations&gt;
+ *   -t, --tsa &lt;url&gt;           timestamp server
+ *   -j, --threads &lt;n&gt;         workers for the non-token stages
+ *   -n, --tsa-requests &lt;n&gt;    timestamp requests in flight (default: 4)
+ *   -m, --merkle              one timestamp for the whole batch (needs -t);
+ *                             the proof is written next to each document
+ *   -k, --keystore &lt;file&gt;     sign with a PKCS#12/JKS file instead of the card;
+ *                             the password is read from ACCINAPDF_STOREPASS
+ *                             or from the console
+ * </pre>
+ *
+ * @author Diogo
+ */
+public final class CommandLineSigner {
+
+    private static final int MAX_PREPARED_AHEAD = 4;
+
+    private final CCSignatureSettings settings;
+    private final ArrayList<String> inputs = new ArrayList<>();
+    private String outputDir;
+    private String keystoreFile;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private int numSigned;
+    private int numFailed;
+
+    public CommandLineSigner(CCSignatureSettings settings) {
+        this.settings = settings;
+        settings.setReason("");
+        settings.setLocation("");
+        settings.setText("");
+        settings.setPageNumber(0);
+        settings.setCertificationLevel(PdfSignatureAppearance.NOT_CERTIFIED);
+        settings.setOcspClient(true);
+        settings.setTimestamp(false);
+        settings.setBatchTimestamp(false);
+        settings.setVisibleSignature(false);
+    }
+
+    /**
+     * @param args the command line arguments, without the "sign" subcommand
+     * @return the process exit code
+     */
+    public int run(String[] args) {
+        try {
+            parseArgs(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(Bundle.getBundle().getString("signUsage"));
+            return 2;
+        }
+
+        final LinkedHashMap<File, String> jobs = new LinkedHashMap<>();
+        for (String input : inputs) {
+            try {
+                for (File file : expand(input)) {
+                    if (!jobs.containsKey(file)) {
+                        jobs.put(file, getDestinationPath(file, jobs.values()));
+                    }
+                }
+            } catch (IOException ex) {
+                System.err.println(Bundle.getBundle().getString("signFailed") + " " + input + ": " + ex.getLocalizedMessage());
+            }
+        }
+        if (jobs.isEmpty()) {
+            System.err.println(Bundle.getBundle().getString("signNoFiles"));
+            return 2;
+        }
+
+        try {
+            final ArrayList<CCAlias> aliasList;
+            if (null == keystoreFile) {
+                aliasList = CCInstance.getInstance().loadKeyStoreAndAliases();
+            } else {
+                aliasList = CCInstance.getInstance().loadSoftwareKeyStore(new File(keystoreFile), null, getKeystorePassword());
+            }
+            if (aliasList.isEmpty()) {
+                System.err.println(Bundle.getBundle().getString("noSmartcardFound"));
+                return 1;
+            }
+            settings.setCcAlias(aliasList.get(0));
+        } catch (LibraryNotLoadedException | KeyStoreNotLoadedException | CertificateException | KeyStoreException | LibraryNotFoundException | AliasException ex) {
+            System.err.println(ex.getLocalizedMessage());
+            return 1;
+        } catch (IOException | GeneralSecurityException ex) {
+            System.err.println(Bundle.getBundle().getString("signKeystoreError") + " " + keystoreFile + ": " + ex.getLocalizedMessage());
+            return 1;
+        }
+
+        final SignatureListener sl = new SignatureListener() {
+            @Override
+            public synchronized void onSignatureComplete(String filename, boolean valid, String message) {
+                if (valid) {
+                    numSigned++;
+                    System.out.println(Bundle.getBundle().getString("signOk") + " " + filename + " -> " + jobs.get(new File(filename)));
+                } else {
+                    numFailed++;
+                    System.out.println(Bundle.getBundle().getString("signFailed") + " " + filename + ": " + message);
+                }
+            }
+        };
+        final SignatureCancelListener scl = new SignatureCancelListener() {
+            @Override
+            public boolean onSignatureCanceled(String filename) {
+                // Sem utilizador para confirmar, o lote é interrompido
+                return true;
+            }
+        };
+
+        final long start = System.nanoTime();
+        final SignaturePipeline pipeline = new SignaturePipeline(settings, numThreads, numThreads + MAX_PREPARED_AHEAD, sl, scl);
+        try {
+            pipeline.sign(jobs);
+        } catch (InterruptedException ex) {
+            controller.Logger.getLogger().addEntry(ex);
+            Thread.currentThread().interrupt();
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        if (pipeline.isBatchTimestampFailed()) {
+            System.err.println(Bundle.getBundle().getString("signBatchTimestampFailed"));
+        }
+
+        System.out.println(String.format(Bundle.getBundle().getString("signSummary"), numSigned, jobs.size(), numFailed, seconds, (seconds > 0 ? numSigned / seconds : 0)));
+        for (TimestampService.Statistics stats : TimestampService.getTimestampService().getStatistics()) {
+            System.out.println(String.format(Bundle.getBundle().getString("signTsaStatistics"), stats.getUrl(), stats.getRequests(), stats.getFailures(), stats.getRetries(), stats.getAverageLatency(), stats.getMaxLatency()));
+        }
+        return (numSigned == jobs.size() ? 0 : 1);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            switch (arg) {
+                case "-o":
+                case "--output":
+                    outputDir = nextArg(args, ++i, arg);
+                    if (!new File(outputDir).isDirectory()) {
+                        throw new IllegalArgumentException(Bundle.getBundle().getString("signInvalidOption") + " " + arg + " " + outputDir);
+                    }
+                    break;
+                case "-r":
+                case "--reason":
+                    settings.setReason(nextArg(args, ++i, arg));
+                    break;
+                case "-l":
+                case "--location":
+                    settings.setLocation(nextArg(args, ++i, arg));
+                    break;
+                case "-v":
+                case "--visible":
+                    settings.setSignaturePositionOnDocument(parseRectangle(nextArg(args, ++i, arg), arg));
+                    settings.setVisibleSignature(true);
+                    break;
+                case "-p":
+                case "--page":
+                    settings.setPageNumber(parsePositiveInt(nextArg(args, ++i, arg), arg) - 1);
+                    break;
+                case "-c":
+                case "--certify":
+                    settings.setCertificationLevel(parseCertificationLevel(nextArg(args, ++i, arg), arg));
+                    break;
+                case "-t":
+                case "--tsa":
+                    settings.setTimestampServer(nextArg(args, ++i, arg));
+                    settings.setTimestamp(true);
+                    break;
+                case "-n":
+                case "--tsa-requests":
+                    TimestampService.getTimestampService().setMaxConcurrentRequests(parsePositiveInt(nextArg(args, ++i, arg), arg));
+                    break;
+                case "-m":
+                case "--merkle":
+                    settings.setBatchTimestamp(true);
+                    break;
+                case "-k":
+                case "--keystore":
+                    keystoreFile = nextArg(args, ++i, arg);
+                    if (!new File(keystoreFile).isFile()) {
+                        throw new IllegalArgumentException(Bundle.getBundle().getString("signInvalidOption") + " " + arg + " " + keystoreFile);
+                    }
+                    break;
+                case "-j":
+                case "--threads":
+                    numThreads = parsePositiveInt(nextArg(args, ++i, arg), arg);
+                    break;
+                default:
+                    if (arg.startsWith("-")) {
+                        throw new IllegalArgumentException(Bundle.getBundle().getString("signInvalidOption") + " " + arg);
+                    }
+                    inputs.add(arg);
+            }
+        }
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException(Bundle.getBundle().getString("signNoFiles"));
+        }
+        if (settings.isBatchTimestamp() && !settings.isTimestamp()) {
+            throw new IllegalArgumentException(Bundle.getBundle().getString("signInvalidOption") + " -m");
+        }
+    }
+
+    private char[] getKeystorePassword() {
+        final String password = System.getenv("ACCINAPDF_STOREPASS");
+        if (null != password) {
+            return password.toCharArray();
+        }
+        if (null != System.console()) {
+            final char[] read = System.console().readPassword("%s ", Bundle.getBundle().getString("signKeystorePassword"));
+            if (null != read) {
+                return read;
+            }
+        }
+        return new char[0];
+    }
+
+    private String nextArg(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(Bundle.getBundle().getString("signInvalidOption") + " " + option);
+        }
+        return args[i];
+    }
+
+    private int parsePositiveInt(String value, String option) {
+        try {
+            final int n = Integer.parseInt(value);
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException ex) {
+        }
+        throw new IllegalArgumentException(Bundle.getBundle().getString("signInvalidOption") + " " + option + " " + value);
+    }
+
+    private Rectangle parseRectangle(String value, String option) {
+        final String[] parts = value.split(",");
+        if (parts.length == 4) {
+            try {
+                final Rectangle rect = new Rectangle(Float.parseFloat(parts[0].trim()), Float.parseFloat(parts[1].trim()), Float.parseFloat(parts[2].trim()), Float.parseFloat(parts[3].trim()));
+                if (rect.getWidth() > 0 && rect.getHeight() > 0) {
+                    return rect;
+                }
+            } catch (NumberFormatException ex) {
+            }
+        }
+        throw new IllegalArgumentException(Bundle.getBundle().getString("signInvalidOption") + " " + option + " " + value);
+    }
+
+    private int parseCertificationLevel(String value, String option) {
+        switch (value.toLowerCase()) {
+            case "none":
+                return PdfSignatureAppearance.NOT_CERTIFIED;
+            case "nochanges":
+                return PdfSignatureAppearance.CERTIFIED_NO_CHANGES_ALLOWED;
+            case "forms":
+                return PdfSignatureAppearance.CERTIFIED_FORM_FILLING;
+            case "annotations":
+                return PdfSignatureAppearance.CERTIFIED_FORM_FILLING_AND_ANNOTATIONS;
+            default:
+                throw new IllegalArgumentException(Bundle.getBundle().getString("signInvalidOption") + " " + option + " " + value);
+        }
+    }
+
+    /**
+     * Expands a file, a directory (its PDF files) or a glob on the file name
+     * (e.g. "in/*.pdf") into the list of PDF files to sign.
+     */
+    private ArrayList<File> expand(String input) throws IOException {
+        final ArrayList<File> files = new ArrayList<>();
+        final File file = new File(input);
+        String glob = null;
+        Path dir = null;
+        if (file.isDirectory()) {
+            dir = file.toPath();
+            glob = "*.{pdf,PDF}";
+        } else if (file.isFile()) {
+            files.add(file.getAbsoluteFile());
+        } else if (file.getName().matches(".*[*?\\[{].*")) {
+            dir = (null == file.getParentFile() ? Paths.get(".") : file.getParentFile().toPath());
+            glob = file.getName();
+        } else {
+            throw new IOException(Bundle.getBundle().getString("signNoFiles"));
+        }
+        if (null != dir) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, glob)) {
+                for (Path path : ds) {
+                    if (Files.isRegularFile(path)) {
+                        files.add(path.toAbsolutePath().normalize().toFile());
+                    }
+                }
+            }
+            Collections.sort(files);
+        }
+        return files;
+    }
+
+    private String getDestinationPath(File file, Collection<String> assigned) {
+        final String folder = (null == outputDir ? file.getParent() : new File(outputDir).getAbsolutePath());
+        String name = file.getName();
+        if (name.toLowerCase().endsWith(".pdf")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        String destinationPath = folder + File.separator + name + "(aCCinado).pdf";
+        int num = 1;
+        while (new File(destinationPath).exists() || assigned.contains(destinationPath)) {
+            destinationPath = folder + File.separator + name + "(aCCinado" + num + ").pdf";
+            num++;
+        }
+        return destinationPath;
+    }
+}
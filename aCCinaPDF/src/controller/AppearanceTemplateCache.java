@@ -0,0 +1,224 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import com.itextpdf.text.BaseColor;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Element;
+import com.itextpdf.text.Font;
+import com.itextpdf.text.Image;
+import com.itextpdf.text.Phrase;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.BaseFont;
+import com.itextpdf.text.pdf.ColumnText;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfTemplate;
+import com.itextpdf.text.pdf.PdfWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import model.AppearanceSettings;
+
+/**
+ * The parts of a visible signature that stay the same from one document to
+ * the next: the font (from FontCache), the background image (from
+ * ImageCache) and the font size that fits the text in the rectangle. When a
+ * batch is signed with the same appearance, the font is loaded and the image
+ * decoded only once. The text is fitted once for each distinct text and, with
+ * fonts whose digits all have the same width, a date that changes does not
+ * trigger a new fit (see Template.getFontSize).
+ *
+ * @author Diogo
+ */
+public final class AppearanceTemplateCache {
+
+    private static final int MAX_TEMPLATES = 16;
+    private static final int MAX_FITTED_SIZES = 256;
+    private static final float MAX_FONT_SIZE = 1024;
+
+    private static final AppearanceTemplateCache appearanceTemplateCache = new AppearanceTemplateCache();
+
+    public static AppearanceTemplateCache getAppearanceTemplateCache() {
+        return appearanceTemplateCache;
+    }
+
+    private final LinkedHashMap<String, Template> templates = new LinkedHashMap<String, Template>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+            return size() > MAX_TEMPLATES;
+        }
+    };
+
+    private AppearanceTemplateCache() {
+    }
+
+    /**
+     * @param rect the signature rectangle on the page; only its size matters
+     */
+    public synchronized Template getTemplate(final AppearanceSettings appearance, final Rectangle rect) throws IOException, DocumentException {
+        final String key = getKey(appearance, rect);
+        Template template = templates.get(key);
+        if (null == template) {
+            template = new Template(appearance, rect);
+            templates.put(key, template);
+        }
+        return template;
+    }
+
+    public synchronized void clear() {
+        templates.clear();
+    }
+
+    private static String getKey(final AppearanceSettings appearance, final Rectangle rect) {
+        final StringBuilder sb = new StringBuilder();
+        appendFile(sb, appearance.getFontLocation());
+        sb.append(appearance.getFontColor().getRGB()).append('|');
+        sb.append(appearance.isBold()).append('|').append(appearance.isItalic()).append('|');
+        sb.append(appearance.getAlign()).append('|');
+        sb.append(rect.getWidth()).append('x').append(rect.getHeight()).append('|');
+        appendFile(sb, appearance.getImageLocation());
+        return sb.toString();
+    }
+
+    private static void appendFile(final StringBuilder sb, final String location) {
+        sb.append(location).append('|');
+        if (null != location) {
+            // O ficheiro pode ser substituído no disco com o mesmo nome
+            final File file = new File(location);
+            sb.append(file.lastModified()).append('|').append(file.length()).append('|');
+        }
+    }
+
+    /**
+     * A compiled appearance. It can be applied to any number of documents,
+     * from any thread.
+     */
+    public static final class Template {
+
+        private final Font font;
+        private final Image image;
+        private final Rectangle size;
+        private final int align;
+        private final boolean tabularDigits;
+        private final LinkedHashMap<String, Float> fittedSizes = new LinkedHashMap<String, Float>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Float> eldest) {
+                return size() > MAX_FITTED_SIZES;
+            }
+        };
+
+        private Template(final AppearanceSettings appearance, final Rectangle rect) throws IOException, DocumentException {
+            font = new Font(FontCache.getFontCache().getFont(appearance.getFontLocation()));
+            font.setColor(new BaseColor(appearance.getFontColor().getRGB()));
+            if (appearance.isBold() && appearance.isItalic()) {
+                font.setStyle(Font.BOLDITALIC);
+            } else if (appearance.isBold()) {
+                font.setStyle(Font.BOLD);
+            } else if (appearance.isItalic()) {
+                font.setStyle(Font.ITALIC);
+            } else {
+                font.setStyle(Font.NORMAL);
+            }
+
+            if (null != appearance.getImageLocation()) {
+                image = ImageCache.getImageCache().getPdfImage(appearance.getImageLocation());
+                // Tal como o Image.getInstance, não assinar sem a imagem escolhida
+                if (null == image) {
+                    throw new IOException(appearance.getImageLocation() + " is not a readable image");
+                }
+            } else {
+                image = null;
+            }
+
+            size = new Rectangle(rect.getWidth(), rect.getHeight());
+            switch (appearance.getAlign()) {
+                case 1:
+                    align = Element.ALIGN_CENTER;
+                    break;
+                case 2:
+                    align = Element.ALIGN_RIGHT;
+                    break;
+                default:
+                    align = Element.ALIGN_LEFT;
+            }
+
+            final BaseFont bf = font.getCalculatedBaseFont(false);
+            boolean tabular = true;
+            for (char c = '1'; c <= '9'; c++) {
+                if (bf.getWidth(c) != bf.getWidth('0')) {
+                    tabular = false;
+                }
+            }
+            tabularDigits = tabular;
+        }
+
+        /**
+         * The size is memoised for each text. When all the digits of the font
+         * have the same width, the text is laid out the same whatever its
+         * digits are, so texts that only differ in their digits (the date
+         * line) share the size. With proportional digits each text is fitted
+         * on its own, exactly as ColumnText.fitText would do.
+         */
+        public float getFontSize(final String text) {
+            final String key;
+            if (tabularDigits) {
+                final StringBuilder sb = new StringBuilder(text);
+                for (int i = 0; i < sb.length(); i++) {
+                    if (Character.isDigit(sb.charAt(i))) {
+                        sb.setCharAt(i, '0');
+                    }
+                }
+                key = sb.toString();
+            } else {
+                key = text;
+            }
+            synchronized (fittedSizes) {
+                final Float fitted = fittedSizes.get(key);
+                if (null != fitted) {
+                    return fitted;
+                }
+            }
+            final float fitted = ColumnText.fitText(font, text, size, MAX_FONT_SIZE, PdfWriter.RUN_DIRECTION_DEFAULT);
+            synchronized (fittedSizes) {
+                fittedSizes.put(key, fitted);
+            }
+            return fitted;
+        }
+
+        /**
+         * Sets the image and font of the appearance and lays out the text in
+         * its layer 2.
+         */
+        public void apply(final PdfSignatureAppearance appearance, final String text) throws DocumentException {
+            if (null != image) {
+                appearance.setImage(image);
+            }
+            appearance.setLayer2Font(font);
+
+            final PdfTemplate layer2 = appearance.getLayer(2);
+            final ColumnText ct = new ColumnText(layer2);
+            ct.setRunDirection(PdfWriter.RUN_DIRECTION_DEFAULT);
+            ct.setAlignment(Element.ALIGN_MIDDLE);
+            ct.setSimpleColumn(new Phrase(text, font), size.getLeft(), size.getBottom(), size.getRight(), size.getTop(), getFontSize(text), align);
+            ct.go();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import com.itextpdf.text.pdf.AcroFields;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDate;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfString;
+import com.itextpdf.text.pdf.security.PdfPKCS7;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Feeds the byte ranges of every signature of a document to their PdfPKCS7
+ * objects reading the file only once. The ranges of incremental signatures
+ * are nested, so instead of re-reading the file from the start for each
+ * signature (as AcroFields.verifySignature does) the file is streamed once
+ * and each chunk is given, in parallel, to every signature that covers it.
+ * The same pass computes the SHA-256 of the whole file and of any requested
+ * prefixes (previous versions of an incrementally updated file).
+ *
+ * @author Diogo
+ */
+public final class ByteRangeDigester {
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final String filename;
+    private final ArrayList<PdfPKCS7> signatures = new ArrayList<>();
+    private final ArrayList<long[]> byteRanges = new ArrayList<>();
+    private final TreeMap<Long, String> prefixHashes = new TreeMap<>();
+    private String fileHash;
+
+    public ByteRangeDigester(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * Creates the PdfPKCS7 of a signature and schedules its byte range to be
+     * digested by digest().
+     */
+    public PdfPKCS7 addSignature(final AcroFields af, final String name, final String provider) {
+        final PdfPKCS7 pk = readSignature(af, name, provider);
+        if (null != pk) {
+            final PdfArray b = af.getSignatureDictionary(name).getAsArray(PdfName.BYTERANGE);
+            signatures.add(pk);
+            byteRanges.add(null == b ? new long[0] : b.asLongArray());
+        }
+        return pk;
+    }
+
+    /**
+     * Creates the PdfPKCS7 of a signature the same way as
+     * AcroFields.verifySignature, but without digesting its byte range.
+     */
+    public static PdfPKCS7 readSignature(final AcroFields af, final String name, final String provider) {
+        final PdfDictionary v = af.getSignatureDictionary(name);
+        if (null == v) {
+            return null;
+        }
+        final PdfName sub = v.getAsName(PdfName.SUBFILTER);
+        final PdfString contents = v.getAsString(PdfName.CONTENTS);
+        final PdfPKCS7 pk;
+        if (PdfName.ADBE_X509_RSA_SHA1.equals(sub)) {
+            PdfString cert = v.getAsString(PdfName.CERT);
+            if (null == cert) {
+                cert = v.getAsArray(PdfName.CERT).getAsString(0);
+            }
+            pk = new PdfPKCS7(contents.getOriginalBytes(), cert.getBytes(), provider);
+        } else {
+            pk = new PdfPKCS7(contents.getOriginalBytes(), sub, provider);
+        }
+
+        PdfString str = v.getAsString(PdfName.M);
+        if (null != str) {
+            pk.setSignDate(PdfDate.decode(str.toString()));
+        }
+        final PdfObject obj = PdfReader.getPdfObject(v.get(PdfName.NAME));
+        if (null != obj) {
+            if (obj.isString()) {
+                pk.setSignName(((PdfString) obj).toUnicodeString());
+            } else if (obj.isName()) {
+                pk.setSignName(PdfName.decodeName(obj.toString()));
+            }
+        }
+        str = v.getAsString(PdfName.REASON);
+        if (null != str) {
+            pk.setReason(str.toUnicodeString());
+        }
+        str = v.getAsString(PdfName.LOCATION);
+        if (null != str) {
+            pk.setLocation(str.toUnicodeString());
+        }
+
+        return pk;
+    }
+
+    /**
+     * Requests the hash of the first length bytes of the file.
+     */
+    public void addPrefix(final long length) {
+        if (length > 0 && !prefixHashes.containsKey(length)) {
+            prefixHashes.put(length, null);
+        }
+    }
+
+    /**
+     * @return the hex SHA-256 of the first length bytes, or null if the file
+     * is shorter than that
+     */
+    public String getPrefixHash(final long length) {
+        return prefixHashes.get(length);
+    }
+
+    /**
+     * @return the hex SHA-256 of the whole file, or null if digest() had
+     * nothing to do
+     */
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public boolean isEmpty() {
+        return signatures.isEmpty() && prefixHashes.isEmpty();
+    }
+
+    /**
+     * Streams the file once and updates every added signature with the bytes
+     * of its byte range.
+     */
+    public void digest(final ExecutorService pool) throws IOException, GeneralSecurityException {
+        if (isEmpty()) {
+            return;
+        }
+        final MessageDigest fileDigest = MessageDigest.getInstance("SHA-256");
+        try (RandomAccessFile raf = new RandomAccessFile(filename, "r")) {
+            final long end = raf.length();
+            final byte[] buf = new byte[CHUNK_SIZE];
+            long pos = 0;
+            while (pos < end) {
+                final int len = (int) Math.min(CHUNK_SIZE, end - pos);
+                raf.readFully(buf, 0, len);
+                update(pool, buf, pos, len, fileDigest);
+                pos += len;
+            }
+        }
+        fileHash = new String(Hex.encode(fileDigest.digest()));
+    }
+
+    private void update(final ExecutorService pool, final byte[] buf, final long chunkStart, final int chunkLength, final MessageDigest fileDigest) throws GeneralSecurityException {
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() throws CloneNotSupportedException {
+                int offset = 0;
+                for (Map.Entry<Long, String> prefix : prefixHashes.subMap(chunkStart, false, chunkStart + chunkLength, true).entrySet()) {
+                    final int prefixEnd = (int) (prefix.getKey() - chunkStart);
+                    fileDigest.update(buf, offset, prefixEnd - offset);
+                    offset = prefixEnd;
+                    prefix.setValue(new String(Hex.encode(((MessageDigest) fileDigest.clone()).digest())));
+                }
+                fileDigest.update(buf, offset, chunkLength - offset);
+                return null;
+            }
+        });
+        for (int s = 0; s < signatures.size(); s++) {
+            final PdfPKCS7 pk = signatures.get(s);
+            final long[] ranges = byteRanges.get(s);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws SignatureException {
+                    for (int i = 0; i + 1 < ranges.length; i += 2) {
+                        final long from = Math.max(ranges[i], chunkStart);
+                        final long to = Math.min(ranges[i] + ranges[i + 1], chunkStart + chunkLength);
+                        if (from < to) {
+                            pk.update(buf, (int) (from - chunkStart), (int) (to - from));
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) ex.getCause();
+            }
+            throw new GeneralSecurityException(ex.getCause());
+        }
+    }
+}
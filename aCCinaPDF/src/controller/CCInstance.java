@@ -21,77 +21,58 @@ package controller;
 
 import model.Settings;
 import accinapdf.ACCinaPDF;
-import com.itextpdf.text.BaseColor;
 import model.CCSignatureSettings;
 import model.CCAlias;
 import com.itextpdf.text.DocumentException;
-import com.itextpdf.text.Element;
 import com.itextpdf.text.ExceptionConverter;
-import com.itextpdf.text.FontFactory;
-import com.itextpdf.text.Image;
-import com.itextpdf.text.Phrase;
 import com.itextpdf.text.Rectangle;
-import com.itextpdf.text.error_messages.MessageLocalization;
 import com.itextpdf.text.pdf.AcroFields;
-import com.itextpdf.text.pdf.BaseFont;
-import com.itextpdf.text.pdf.ColumnText;
 import com.itextpdf.text.pdf.PdfDictionary;
-import com.itextpdf.text.pdf.PdfEncryption;
+import com.itextpdf.text.pdf.PdfDate;
+import com.itextpdf.text.pdf.PdfName;
 import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfSignature;
 import com.itextpdf.text.pdf.PdfSignatureAppearance;
 import com.itextpdf.text.pdf.PdfStamper;
-import com.itextpdf.text.pdf.PdfTemplate;
+import com.itextpdf.text.pdf.PdfString;
 import com.itextpdf.text.pdf.PdfWriter;
-import com.itextpdf.text.pdf.security.CertificateUtil;
+import com.itextpdf.text.pdf.security.BouncyCastleDigest;
 import com.itextpdf.text.pdf.security.CertificateVerification;
 import com.itextpdf.text.pdf.security.CrlClient;
+import com.itextpdf.text.pdf.security.DigestAlgorithms;
+import com.itextpdf.text.pdf.security.ExternalBlankSignatureContainer;
 import com.itextpdf.text.pdf.security.ExternalDigest;
 import com.itextpdf.text.pdf.security.ExternalSignature;
-import com.itextpdf.text.pdf.security.KeyStoreUtil;
+import com.itextpdf.text.pdf.security.ExternalSignatureContainer;
 import com.itextpdf.text.pdf.security.MakeSignature;
 import com.itextpdf.text.pdf.security.OcspClient;
-import com.itextpdf.text.pdf.security.OcspClientBouncyCastle;
 import com.itextpdf.text.pdf.security.PdfPKCS7;
-import com.itextpdf.text.pdf.security.PrivateKeySignature;
-import com.itextpdf.text.pdf.security.ProviderDigest;
 import com.itextpdf.text.pdf.security.SignaturePermissions;
 import com.itextpdf.text.pdf.security.TSAClient;
-import com.itextpdf.text.pdf.security.TSAClientBouncyCastle;
 import exception.AliasException;
 import exception.KeyStoreNotLoadedException;
 import exception.LibraryNotFoundException;
 import exception.LibraryNotLoadedException;
 import exception.RevisionExtractionException;
 import exception.SignatureFailedException;
-import java.awt.Font;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.math.BigInteger;
-import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
-import java.net.URL;
 import java.security.CodeSource;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
 import java.security.Security;
-import java.security.UnrecoverableKeyException;
 import java.security.cert.CRL;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateExpiredException;
-import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.PKIXParameters;
 import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
@@ -101,48 +82,40 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
-import java.util.Enumeration;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import javax.naming.InvalidNameException;
 import javax.naming.ldap.LdapName;
 import javax.naming.ldap.Rdn;
-import javax.security.auth.callback.CallbackHandler;
-import javax.security.auth.callback.PasswordCallback;
-import javax.security.auth.callback.UnsupportedCallbackException;
 import javax.smartcardio.Card;
 import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardTerminal;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 import javax.smartcardio.TerminalFactory;
-import javax.swing.JFileChooser;
 import listener.SignatureListener;
+import listener.ValidationCancelListener;
 import listener.ValidationListener;
 import model.CertificateStatus;
 import model.SignatureValidation;
-import org.apache.commons.lang3.SystemUtils;
 import org.apache.commons.lang3.text.WordUtils;
-import org.bouncycastle.asn1.DEROctetString;
-import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
 import org.bouncycastle.asn1.x500.X500Name;
-import org.bouncycastle.asn1.x509.Extension;
-import org.bouncycastle.asn1.x509.Extensions;
-import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
 import org.bouncycastle.cert.ocsp.BasicOCSPResp;
-import org.bouncycastle.cert.ocsp.CertificateID;
-import org.bouncycastle.cert.ocsp.OCSPException;
-import org.bouncycastle.cert.ocsp.OCSPReq;
-import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
-import org.bouncycastle.cert.ocsp.OCSPResp;
 import org.bouncycastle.cert.ocsp.RevokedStatus;
 import org.bouncycastle.cert.ocsp.SingleResp;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.ocsp.UnknownStatus;
-import org.bouncycastle.operator.OperatorException;
-import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.tsp.TimeStampToken;
-import sun.security.pkcs11.SunPKCS11;
 import view.MultipleValidationDialog;
 
 /**
@@ -153,11 +126,23 @@ public class CCInstance {
 
     private static final String SIGNATURE_CREATOR = "aCCinaPDF";
     private static final String KEYSTORE_PATH = "/keystore/aCCinaPDF_cacerts";
+    private static final int MAX_OPEN_SESSIONS = 8;
 
     private KeyStore ks;
-    private KeyStore pkcs11ks;
-    private SunPKCS11 pkcs11Provider;
+    private TrustStoreIndex trustStoreIndex;
+    private SignatureProvider signatureProvider;
     private final ArrayList<CCAlias> aliasList = new ArrayList<>();
+    private final LinkedHashMap<String, DocumentSession> sessions = new LinkedHashMap<String, DocumentSession>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DocumentSession> eldest) {
+            if (size() > MAX_OPEN_SESSIONS) {
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    };
 
     private static CCInstance instance;
 
@@ -174,129 +159,73 @@ public class CCInstance {
     }
 
     public final ArrayList<CCAlias> loadKeyStoreAndAliases() throws LibraryNotLoadedException, KeyStoreNotLoadedException, CertificateException, KeyStoreException, LibraryNotFoundException, AliasException {
-        String pkcs11config = "name = SmartCard\n library = ";
-        String path = null;
-        if (SystemUtils.IS_OS_WINDOWS) {
-            path = System.getenv("HOMEDRIVE") + "\\windows\\system32\\pteidpkcs11.dll";
-        } else if (SystemUtils.IS_OS_LINUX) {
-            path = "/usr/local/lib/libpteidpkcs11.so";
-        } else if (SystemUtils.IS_OS_MAC_OSX) {
-            path = "/usr/local/lib/pteidpkcs11.bundle";
-        }
-
-        if (null == path) {
-            throw new LibraryNotLoadedException(Bundle.getBundle().getString("unknownOS"));
-        } else if (new File(path).exists()) {
-            pkcs11config += path;
-        } else {
-            String res = userLoadLibraryPKCS11();
-            if (null != res) {
-                pkcs11config += res;
-            }
-            throw new LibraryNotFoundException(Bundle.getBundle().getString("libraryNotFound"));
-        }
-        final byte[] pkcs11configBytes;
-        try {
-            pkcs11configBytes = pkcs11config.getBytes();
-        } catch (Exception eiie) {
-            Logger.getLogger().addEntry(eiie);
-            throw new LibraryNotFoundException(Bundle.getBundle().getString("libraryDoesNotExist"));
-        }
-        final ByteArrayInputStream configStream = new ByteArrayInputStream(pkcs11configBytes);
-        try {
-            pkcs11Provider = new sun.security.pkcs11.SunPKCS11(configStream);
-            pkcs11Provider.setCallbackHandler(new CallbackHandler() {
-
-                @Override
-                public void handle(javax.security.auth.callback.Callback[] callbacks) throws IOException, UnsupportedCallbackException {
-                    for (javax.security.auth.callback.Callback c : callbacks) {
-                        if (c instanceof PasswordCallback) {
-                            ((PasswordCallback) c).setPassword(null);
-                        }
-                    }
-                }
-            });
-        } catch (Exception eiie) {
-            Logger.getLogger().addEntry(eiie);
-            throw new LibraryNotLoadedException(Bundle.getBundle().getString("libraryNotLoaded"));
-        }
-
-        Security.addProvider(pkcs11Provider);
+        final ArrayList<CCAlias> aliases = SmartcardManager.getSmartcardManager().loadAliases();
+        signatureProvider = SmartcardManager.getSmartcardManager().getSignatureProvider();
+        aliasList.clear();
+        aliasList.addAll(aliases);
+        return aliasList;
+    }
 
-        try {
-            pkcs11ks = KeyStore.getInstance("PKCS11");
-            pkcs11ks.load(null, null);
-        } catch (Exception e) {
-            Logger.getLogger().addEntry(e);
-            throw new KeyStoreNotLoadedException(Bundle.getBundle().getString("keystoreNotLoaded"));
-        }
+    public final ArrayList<CCAlias> getAliasList() {
+        return aliasList;
+    }
 
-        final Enumeration aliasesEnum = pkcs11ks.aliases();
+    /**
+     * Uses the keys of a PKCS#12 or JKS file instead of the Citizen Card.
+     *
+     * @return the aliases of the keystore that can sign
+     */
+    public final ArrayList<CCAlias> loadSoftwareKeyStore(final File file, final String type, final char[] password) throws IOException, GeneralSecurityException {
+        final KeyStoreSignatureProvider provider = new KeyStoreSignatureProvider(file, type, password);
+        final ArrayList<CCAlias> aliases = provider.getAliases();
+        signatureProvider = provider;
         aliasList.clear();
+        aliasList.addAll(aliases);
+        return aliasList;
+    }
 
-        while (aliasesEnum.hasMoreElements()) {
-            final String alias = (String) aliasesEnum.nextElement();
-            if (null != alias) {
-                if (alias.isEmpty()) {
-                    throw new AliasException(Bundle.getBundle().getString("blankAlias"));
-                } else {
-                    final Certificate[] certChain = pkcs11ks.getCertificateChain(alias);
-                    if (null != certChain) {
-                        if (CCAlias.ASSINATURA.equals(alias)) {
-                            if (0 == certChain.length) {
-                                throw new CertificateException(Bundle.getBundle().getString("chainInvalidFormat"));
-                            } else {
-                                final Certificate cert = certChain[0];
-                                try {
-                                    ((X509Certificate) cert).checkValidity();
-                                    if (1 <= certChain.length) {
-                                        final CCAlias ccAliasTemp = new CCAlias(alias, certChain);
-                                        aliasList.add(ccAliasTemp);
-                                    }
-                                } catch (CertificateExpiredException cee) {
-                                    Logger.getLogger().addEntry(cee);
-                                    throw new CertificateException(Bundle.getBundle().getString("aliasCertificate") + " " + alias + " " + Bundle.getBundle().getString("expired") + "!");
-                                } catch (CertificateNotYetValidException cee) {
-                                    Logger.getLogger().addEntry(cee);
-                                    throw new CertificateException(Bundle.getBundle().getString("aliasCertificate") + " " + alias + " " + Bundle.getBundle().getString("notYetValid") + "!");
-                                }
-                            }
-                        }
-                    }
+    /**
+     * @return one lane per token with a signing alias when the card is in use
+     * and there are several tokens, otherwise a single lane with the current
+     * provider and settings
+     */
+    public final ArrayList<SignatureLane> getSignatureLanes(final CCSignatureSettings settings) {
+        final ArrayList<SignatureLane> lanes = new ArrayList<>();
+        if (signatureProvider instanceof PKCS11SignatureProvider) {
+            try {
+                for (PKCS11SignatureProvider token : SmartcardManager.getSmartcardManager().loadTokens()) {
+                    final CCSignatureSettings tokenSettings = new CCSignatureSettings(settings);
+                    tokenSettings.setCcAlias(token.getAliases().get(0));
+                    lanes.add(new SignatureLane(tokenSettings, token));
                 }
+            } catch (LibraryNotLoadedException | LibraryNotFoundException ex) {
+                Logger.getLogger().addEntry(ex);
             }
         }
-        return aliasList;
+        if (lanes.size() <= 1) {
+            lanes.clear();
+            lanes.add(new SignatureLane(settings, signatureProvider));
+        }
+        return lanes;
     }
 
-    public final ArrayList<CCAlias> getAliasList() {
-        return aliasList;
+    public SignatureProvider getSignatureProvider() {
+        return signatureProvider;
     }
 
-    private PrivateKey getPrivateKeyFromAlias(final String alias) {
-        try {
-            final PrivateKey pkey = (PrivateKey) pkcs11ks.getKey(alias, null);
-            return pkey;
-        } catch (KeyStoreException e) {
-            controller.Logger.getLogger().addEntry(e);
-        } catch (NoSuchAlgorithmException e) {
-            controller.Logger.getLogger().addEntry(e);
-        } catch (UnrecoverableKeyException e) {
-            controller.Logger.getLogger().addEntry(e);
-        } catch (Exception e) {
-            controller.Logger.getLogger().addEntry(e);
-        }
-        return null;
+    public void setSignatureProvider(SignatureProvider signatureProvider) {
+        this.signatureProvider = signatureProvider;
     }
 
     public final Certificate[] getCompleteTrustedCertificateChain(final X509Certificate x509c) throws KeyStoreException, IOException, FileNotFoundException, NoSuchAlgorithmException, CertificateException, InvalidAlgorithmParameterException {
         final ArrayList<X509Certificate> certChainList = new ArrayList<>();
         certChainList.add(x509c);
+        final TrustStoreIndex index = getTrustStoreIndex();
         X509Certificate temp = x509c;
-        while (true) {
-            X509Certificate issuer = (X509Certificate) hasTrustedIssuerCertificate(temp);
+        while (null != index) {
+            X509Certificate issuer = index.getIssuer(temp);
             if (null != issuer) {
-                if (temp.equals(issuer)) {
+                if (temp.equals(issuer) || certChainList.contains(issuer)) {
                     break;
                 }
                 certChainList.add(issuer);
@@ -314,12 +243,39 @@ public class CCInstance {
     }
 
     public final boolean signPdf(final String pdfPath, final String destination, final CCSignatureSettings settings, final SignatureListener sl) throws CertificateException, IOException, DocumentException, KeyStoreException, SignatureFailedException, FileNotFoundException, NoSuchAlgorithmException, InvalidAlgorithmParameterException {
-        PrivateKey pk;
+        final PendingSignature ps = prepareSignature(pdfPath, destination, settings, sl);
+        if (null == ps) {
+            return false;
+        }
+        try {
+            signPendingSignature(ps);
+        } catch (Exception e) {
+            return abortSignature(ps, e, sl);
+        }
+        return finishSignature(ps, sl);
+    }
 
-        final PdfReader reader = new PdfReader(pdfPath);
-        pk = getPrivateKeyFromAlias(settings.getCcAlias().getAlias());
+    /**
+     * First signing stage: stamps the appearance, reserves the signature space
+     * and hashes the byte range. It does not touch the token, so several
+     * documents can be prepared in parallel.
+     */
+    public final PendingSignature prepareSignature(final String pdfPath, final String destination, final CCSignatureSettings settings, final SignatureListener sl) throws CertificateException, IOException, DocumentException, KeyStoreException, SignatureFailedException, FileNotFoundException, NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+        return prepareSignature(pdfPath, destination, settings, signatureProvider, sl);
+    }
 
-        if (getCertificationLevel(pdfPath) == PdfSignatureAppearance.CERTIFIED_NO_CHANGES_ALLOWED) {
+    /**
+     * Same as prepareSignature, with the key of the given provider (one of the
+     * tokens of a multi-token batch).
+     */
+    public final PendingSignature prepareSignature(final String pdfPath, final String destination, final CCSignatureSettings settings, final SignatureProvider signatureProvider, final SignatureListener sl) throws CertificateException, IOException, DocumentException, KeyStoreException, SignatureFailedException, FileNotFoundException, NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+        final DocumentSession session = getDocumentSession(pdfPath);
+        final ArrayList<Certificate> embeddedCertificateChain = settings.getCcAlias().getCertificateChain();
+        final Certificate lastCert = embeddedCertificateChain.get(embeddedCertificateChain.size() - 1);
+        final String hashAlg = getHashAlgorithm(((X509Certificate) lastCert).getSigAlgName());
+        final ExternalSignature es = (null == signatureProvider ? null : signatureProvider.getExternalSignature(settings.getCcAlias().getAlias(), hashAlg));
+
+        if (session.getCertificationLevel() == PdfSignatureAppearance.CERTIFIED_NO_CHANGES_ALLOWED) {
             String message = Bundle.getBundle().getString("fileDoesNotAllowChanges");
             if (sl != null) {
                 sl.onSignatureComplete(pdfPath, false, message);
@@ -327,11 +283,9 @@ public class CCInstance {
             throw new SignatureFailedException(message);
         }
 
-        if (reader.getNumberOfPages() - 1 < settings.getPageNumber()) {
-            settings.setPageNumber(reader.getNumberOfPages() - 1);
-        }
+        final int pageNumber = Math.min(settings.getPageNumber(), session.getNumberOfPages() - 1);
 
-        if (null == pk) {
+        if (null == es) {
             String message = Bundle.getBundle().getString("noSmartcardFound");
             if (sl != null) {
                 sl.onSignatureComplete(pdfPath, false, message);
@@ -339,16 +293,14 @@ public class CCInstance {
             throw new CertificateException(message);
         }
 
-        if (null == pkcs11ks.getCertificateChain(settings.getCcAlias().getAlias())) {
+        if (null == signatureProvider.getCertificateChain(settings.getCcAlias().getAlias())) {
             String message = Bundle.getBundle().getString("certificateNullChain");
             if (sl != null) {
                 sl.onSignatureComplete(pdfPath, false, message);
             }
             throw new CertificateException(message);
         }
-        final ArrayList<Certificate> embeddedCertificateChain = settings.getCcAlias().getCertificateChain();
         final Certificate owner = embeddedCertificateChain.get(0);
-        final Certificate lastCert = embeddedCertificateChain.get(embeddedCertificateChain.size() - 1);
 
         if (null == owner) {
             String message = Bundle.getBundle().getString("certificateNameUnknown");
@@ -358,9 +310,100 @@ public class CCInstance {
             throw new CertificateException(message);
         }
 
-        final X509Certificate X509C = ((X509Certificate) lastCert);
         final Calendar now = Calendar.getInstance();
-        final Certificate[] filledMissingCertsFromChainInTrustedKeystore = getCompleteTrustedCertificateChain(X509C);
+        final Certificate[] fullCertificateChain = getFullCertificateChain(embeddedCertificateChain);
+
+        // Leitor e Stamper
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(destination);
+        } catch (FileNotFoundException e) {
+            String message = Bundle.getBundle().getString("outputFileError");
+            if (sl != null) {
+                sl.onSignatureComplete(pdfPath, false, message);
+            }
+            throw new IOException(message);
+        }
+
+        final PdfSignatureAppearance appearance;
+        try {
+            appearance = createSignatureAppearance(session, os, settings, owner, now, pageNumber);
+        } catch (IOException | DocumentException e) {
+            // Por exemplo, a imagem da assinatura não pode ser lida
+            abortSignature(pdfPath, destination, os, e, sl);
+            return null;
+        }
+
+        // OCSP (partilhado: em lote só é pedido uma vez por certificado)
+        final OcspClient ocspClient = OcspCache.getOcspCache();
+        byte[] ocsp = null;
+        if (fullCertificateChain.length >= 2) {
+            ocsp = ocspClient.getEncoded((X509Certificate) fullCertificateChain[0], (X509Certificate) fullCertificateChain[1], null);
+        }
+
+        // CRL (da cache), só quando não há resposta OCSP
+        ArrayList<CrlClient> crlList = null;
+        if (null == ocsp) {
+            crlList = new ArrayList<>();
+            crlList.add(CrlCache.getCrlCache().getCrlClient(fullCertificateChain));
+        }
+
+        // TimeStamp
+        // No modo de lote o carimbo é pedido uma vez para todos (MerkleTimestamp)
+        TSAClient tsaClient = null;
+        if (settings.isTimestamp() && !settings.isBatchTimestamp()) {
+            tsaClient = TimestampService.getTimestampService().getTsaClient(settings.getTimestampServer());
+        }
+
+        final ExternalDigest digest = signatureProvider.getExternalDigest();
+
+        // Mesmo fluxo que o MakeSignature.signDetached, mas parado antes do token
+        try {
+            Collection<byte[]> crlBytes = null;
+            for (int i = 0; crlBytes == null && i < fullCertificateChain.length; i++) {
+                crlBytes = MakeSignature.processCrl(fullCertificateChain[i], crlList);
+            }
+            int estimatedSize = 8192;
+            if (crlBytes != null) {
+                for (byte[] crl : crlBytes) {
+                    estimatedSize += crl.length + 10;
+                }
+            }
+            if (ocspClient != null) {
+                estimatedSize += 4192;
+            }
+            if (tsaClient != null) {
+                estimatedSize += 4192;
+            }
+
+            final PdfSignature dic = new PdfSignature(PdfName.ADOBE_PPKLITE, PdfName.ADBE_PKCS7_DETACHED);
+            dic.setReason(appearance.getReason());
+            dic.setLocation(appearance.getLocation());
+            dic.setSignatureCreator(appearance.getSignatureCreator());
+            dic.setContact(appearance.getContact());
+            dic.setDate(new PdfDate(appearance.getSignDate()));
+            appearance.setCryptoDictionary(dic);
+
+            final HashMap<PdfName, Integer> exc = new HashMap<>();
+            exc.put(PdfName.CONTENTS, estimatedSize * 2 + 2);
+            appearance.preClose(exc);
+
+            final String hashAlgorithm = es.getHashAlgorithm();
+            final PdfPKCS7 sgn = new PdfPKCS7(null, fullCertificateChain, hashAlgorithm, null, digest, false);
+            final byte[] hash = DigestAlgorithms.digest(appearance.getRangeStream(), digest.getMessageDigest(hashAlgorithm));
+            final Calendar cal = Calendar.getInstance();
+            final byte[] sh = sgn.getAuthenticatedAttributeBytes(hash, cal, ocsp, crlBytes, MakeSignature.CryptoStandard.CMS);
+            return new PendingSignature(pdfPath, destination, os, appearance, sgn, es, tsaClient, hash, cal, ocsp, crlBytes, sh, estimatedSize);
+        } catch (GeneralSecurityException | IOException | DocumentException e) {
+            appearance.getStamper().getReader().close();
+            abortSignature(pdfPath, destination, os, e, sl);
+            return null;
+        }
+    }
+
+    private Certificate[] getFullCertificateChain(final ArrayList<Certificate> embeddedCertificateChain) throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, InvalidAlgorithmParameterException {
+        final X509Certificate lastCert = (X509Certificate) embeddedCertificateChain.get(embeddedCertificateChain.size() - 1);
+        final Certificate[] filledMissingCertsFromChainInTrustedKeystore = getCompleteTrustedCertificateChain(lastCert);
 
         final Certificate[] fullCertificateChain;
         if (filledMissingCertsFromChainInTrustedKeystore.length < 2) {
@@ -378,19 +421,10 @@ public class CCInstance {
                 fullCertificateChain[i] = filledMissingCertsFromChainInTrustedKeystore[f];
             }
         }
+        return fullCertificateChain;
+    }
 
-        // Leitor e Stamper
-        FileOutputStream os = null;
-        try {
-            os = new FileOutputStream(destination);
-        } catch (FileNotFoundException e) {
-            String message = Bundle.getBundle().getString("outputFileError");
-            if (sl != null) {
-                sl.onSignatureComplete(pdfPath, false, message);
-            }
-            throw new IOException(message);
-        }
-
+    private PdfSignatureAppearance createSignatureAppearance(final DocumentSession session, final OutputStream os, final CCSignatureSettings settings, final Certificate owner, final Calendar now, final int pageNumber) throws IOException, DocumentException {
         // Aparência da Assinatura
         final char pdfVersion;
         switch (Settings.getSettings().getPdfVersion()) {
@@ -416,7 +450,16 @@ public class CCInstance {
                 pdfVersion = PdfWriter.VERSION_1_7;
         }
 
-        final PdfStamper stamper = (getNumberOfSignatures(pdfPath) == 0 ? PdfStamper.createSignature(reader, os, pdfVersion) : PdfStamper.createSignature(reader, os, pdfVersion, null, true));
+        // O stamper altera o reader, por isso tem um só para ele (o da sessão pode estar a ser lido na validação)
+        final int numSigs = session.getNumberOfSignatures();
+        final PdfReader reader = new PdfReader(session.getFilename());
+        final PdfStamper stamper;
+        try {
+            stamper = (numSigs == 0 ? PdfStamper.createSignature(reader, os, pdfVersion) : PdfStamper.createSignature(reader, os, pdfVersion, null, true));
+        } catch (IOException | DocumentException e) {
+            reader.close();
+            throw e;
+        }
 
         final PdfSignatureAppearance appearance = stamper.getSignatureAppearance();
         appearance.setSignDate(now);
@@ -426,28 +469,12 @@ public class CCInstance {
         appearance.setSignatureCreator(SIGNATURE_CREATOR);
         appearance.setCertificate(owner);
 
-        final String fieldName = settings.getPrefix() + " " + (1 + getNumberOfSignatures(pdfPath));
+        final String fieldName = settings.getPrefix() + " " + (1 + numSigs);
         if (settings.isVisibleSignature()) {
-            appearance.setVisibleSignature(settings.getPositionOnDocument(), settings.getPageNumber() + 1, fieldName);
+            appearance.setVisibleSignature(settings.getPositionOnDocument(), pageNumber + 1, fieldName);
             appearance.setRenderingMode(PdfSignatureAppearance.RenderingMode.DESCRIPTION);
-            if (null != settings.getAppearance().getImageLocation()) {
-                appearance.setImage(Image.getInstance(settings.getAppearance().getImageLocation()));
-            }
-
-            com.itextpdf.text.Font font = new com.itextpdf.text.Font(FontFactory.getFont(settings.getAppearance().getFontLocation(), BaseFont.IDENTITY_H, BaseFont.EMBEDDED, 0).getBaseFont());
-
-            font.setColor(new BaseColor(settings.getAppearance().getFontColor().getRGB()));
-            if (settings.getAppearance().isBold() && settings.getAppearance().isItalic()) {
-                font.setStyle(Font.BOLD + Font.ITALIC);
-            } else if (settings.getAppearance().isBold()) {
-                font.setStyle(Font.BOLD);
-            } else if (settings.getAppearance().isItalic()) {
-                font.setStyle(Font.ITALIC);
-            } else {
-                font.setStyle(Font.PLAIN);
-            }
+            final AppearanceTemplateCache.Template template = AppearanceTemplateCache.getAppearanceTemplateCache().getTemplate(settings.getAppearance(), settings.getPositionOnDocument());
 
-            appearance.setLayer2Font(font);
             String text = "";
             if (settings.getAppearance().isShowName()) {
                 if (!settings.getCcAlias().getName().isEmpty()) {
@@ -473,233 +500,618 @@ public class CCInstance {
                 text += settings.getText();
             }
 
-            PdfTemplate layer2 = appearance.getLayer(2);
-            Rectangle rect = settings.getPositionOnDocument();
-            Rectangle sr = new Rectangle(rect.getWidth(), rect.getHeight());
-            float size = ColumnText.fitText(font, text, sr, 1024, PdfWriter.RUN_DIRECTION_DEFAULT);
-            ColumnText ct = new ColumnText(layer2);
-            ct.setRunDirection(PdfWriter.RUN_DIRECTION_DEFAULT);
-            ct.setAlignment(Element.ALIGN_MIDDLE);
-            int align;
-            switch (settings.getAppearance().getAlign()) {
-                case 0:
-                    align = Element.ALIGN_LEFT;
-                    break;
-                case 1:
-                    align = Element.ALIGN_CENTER;
-                    break;
-                case 2:
-                    align = Element.ALIGN_RIGHT;
-                    break;
-                default:
-                    align = Element.ALIGN_LEFT;
-            }
-
-            ct.setSimpleColumn(new Phrase(text, font), sr.getLeft(), sr.getBottom(), sr.getRight(), sr.getTop(), size, align);
-            ct.go();
+            template.apply(appearance, text);
         } else {
             appearance.setVisibleSignature(new Rectangle(0, 0, 0, 0), 1, fieldName);
         }
+        return appearance;
+    }
 
-        // CRL <- Pesado!
-        final ArrayList<CrlClient> crlList = null;
+    /**
+     * Second signing stage: the token operation, the only one that has to run
+     * one document at a time.
+     */
+    public final void signPendingSignature(final PendingSignature ps) throws GeneralSecurityException {
+        final ExternalSignature es = ps.getExternalSignature();
+        final byte[] extSignature = es.sign(ps.getAuthenticatedAttributes());
+        ps.getPkcs7().setExternalDigest(extSignature, null, es.getEncryptionAlgorithm());
+        ps.setSigned(true);
+    }
 
-        // OCSP
-        OcspClient ocspClient = new OcspClientBouncyCastle();
+    /**
+     * Third signing stage: requests the timestamp, injects the signature
+     * container and writes the signed document.
+     */
+    public final boolean finishSignature(final PendingSignature ps, final SignatureListener sl) throws IOException, SignatureFailedException {
+        try {
+            final byte[] encodedSig = ps.getPkcs7().getEncodedPKCS7(ps.getHash(), ps.getCalendar(), ps.getTsaClient(), ps.getOcsp(), ps.getCrlBytes(), MakeSignature.CryptoStandard.CMS);
+            if (ps.getEstimatedSize() < encodedSig.length) {
+                throw new IOException("Not enough space");
+            }
+            final byte[] paddedSig = new byte[ps.getEstimatedSize()];
+            System.arraycopy(encodedSig, 0, paddedSig, 0, encodedSig.length);
 
-        // TimeStamp
+            final PdfDictionary dic2 = new PdfDictionary();
+            dic2.put(PdfName.CONTENTS, new PdfString(paddedSig).setHexWriting(true));
+            ps.getAppearance().close(dic2);
+            ps.setEncodedSignature(encodedSig);
+            if (sl != null) {
+                sl.onSignatureComplete(ps.getPdfPath(), true, "");
+            }
+            return true;
+        } catch (Exception e) {
+            return abortSignature(ps, e, sl);
+        }
+    }
+
+    /**
+     * First phase of a deferred signature: writes preparedPath with the
+     * appearance and an empty signature container, and returns the digest of
+     * its byte range.
+     */
+    public final DeferredSignature prepareDeferredSignature(final String pdfPath, final String preparedPath, final CCSignatureSettings settings) throws CertificateException, IOException, DocumentException, KeyStoreException, SignatureFailedException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, GeneralSecurityException {
+        final DocumentSession session = getDocumentSession(pdfPath);
+        if (session.getCertificationLevel() == PdfSignatureAppearance.CERTIFIED_NO_CHANGES_ALLOWED) {
+            throw new SignatureFailedException(Bundle.getBundle().getString("fileDoesNotAllowChanges"));
+        }
+
+        final ArrayList<Certificate> embeddedCertificateChain = settings.getCcAlias().getCertificateChain();
+        final Certificate owner = embeddedCertificateChain.get(0);
+        if (null == owner) {
+            throw new CertificateException(Bundle.getBundle().getString("certificateNameUnknown"));
+        }
+        final X509Certificate X509C = (X509Certificate) embeddedCertificateChain.get(embeddedCertificateChain.size() - 1);
+        final String hashAlgorithm = DigestAlgorithms.getDigest(DigestAlgorithms.getAllowedDigests(getHashAlgorithm(X509C.getSigAlgName())));
+        final int pageNumber = Math.min(settings.getPageNumber(), session.getNumberOfPages() - 1);
+        final Calendar now = Calendar.getInstance();
+
+        int estimatedSize = 8192 + 4192;
+        if (settings.isTimestamp()) {
+            estimatedSize += 4192;
+        }
+
+        final FileOutputStream os;
+        try {
+            os = new FileOutputStream(preparedPath);
+        } catch (FileNotFoundException e) {
+            throw new IOException(Bundle.getBundle().getString("outputFileError"));
+        }
+
+        final byte[][] digest = new byte[1][];
+        PdfSignatureAppearance appearance = null;
+        boolean prepared = false;
+        try {
+            appearance = createSignatureAppearance(session, os, settings, owner, now, pageNumber);
+            MakeSignature.signExternalContainer(appearance, new ExternalBlankSignatureContainer(PdfName.ADOBE_PPKLITE, PdfName.ADBE_PKCS7_DETACHED) {
+                @Override
+                public byte[] sign(InputStream data) throws GeneralSecurityException {
+                    try {
+                        digest[0] = DigestAlgorithms.digest(data, new BouncyCastleDigest().getMessageDigest(hashAlgorithm));
+                    } catch (IOException ex) {
+                        throw new GeneralSecurityException(ex);
+                    }
+                    return new byte[0];
+                }
+            }, estimatedSize);
+            prepared = true;
+            return new DeferredSignature(pdfPath, preparedPath, appearance.getFieldName(), hashAlgorithm, digest[0], now.getTimeInMillis(), estimatedSize);
+        } finally {
+            os.close();
+            if (!prepared) {
+                if (null != appearance) {
+                    appearance.getStamper().getReader().close();
+                }
+                new File(preparedPath).delete();
+            }
+        }
+    }
+
+    /**
+     * Signs the digests of several deferred signatures in one token session
+     * and returns their CMS containers, in the same order.
+     */
+    public final ArrayList<byte[]> createSignatureContainers(final List<DeferredSignature> deferredSignatures, final CCSignatureSettings settings) throws CertificateException, IOException, KeyStoreException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, GeneralSecurityException, SignatureFailedException {
+        if (null == signatureProvider) {
+            throw new CertificateException(Bundle.getBundle().getString("noSmartcardFound"));
+        }
+        final Certificate[] fullCertificateChain = getFullCertificateChain(settings.getCcAlias().getCertificateChain());
+
+        byte[] ocsp = null;
+        if (fullCertificateChain.length >= 2) {
+            ocsp = OcspCache.getOcspCache().getEncoded((X509Certificate) fullCertificateChain[0], (X509Certificate) fullCertificateChain[1], null);
+        }
         TSAClient tsaClient = null;
         if (settings.isTimestamp()) {
-            tsaClient = new TSAClientBouncyCastle(settings.getTimestampServer(), null, null);
+            tsaClient = TimestampService.getTimestampService().getTsaClient(settings.getTimestampServer());
         }
 
-        final String hashAlg = getHashAlgorithm(X509C.getSigAlgName());
+        final ArrayList<byte[]> containers = new ArrayList<>();
+        for (DeferredSignature ds : deferredSignatures) {
+            final ExternalSignature es = signatureProvider.getExternalSignature(settings.getCcAlias().getAlias(), ds.getHashAlgorithm());
+            if (null == es) {
+                throw new CertificateException(Bundle.getBundle().getString("noSmartcardFound"));
+            }
+            final PdfPKCS7 sgn = new PdfPKCS7(null, fullCertificateChain, ds.getHashAlgorithm(), null, new BouncyCastleDigest(), false);
+            final Calendar cal = ds.getSignDate();
+            final byte[] sh = sgn.getAuthenticatedAttributeBytes(ds.getDigest(), cal, ocsp, null, MakeSignature.CryptoStandard.CMS);
+            try {
+                sgn.setExternalDigest(es.sign(sh), null, es.getEncryptionAlgorithm());
+            } catch (Exception e) {
+                checkTokenError(e);
+                throw e;
+            }
+            try {
+                containers.add(sgn.getEncodedPKCS7(ds.getDigest(), cal, tsaClient, ocsp, null, MakeSignature.CryptoStandard.CMS));
+            } catch (ExceptionConverter e) {
+                controller.Logger.getLogger().addEntry(e.getException());
+                throw new SignatureFailedException(Bundle.getBundle().getString("timestampFailed"));
+            }
+        }
+        return containers;
+    }
+
+    /**
+     * Second phase of a deferred signature: writes destination with the CMS
+     * container injected in the space reserved by prepareDeferredSignature.
+     * The prepared file is not hashed again, so this can simply be retried.
+     */
+    public final void injectSignatureContainer(final DeferredSignature ds, final String destination, final byte[] container) throws IOException, DocumentException, GeneralSecurityException {
+        final PdfReader reader = new PdfReader(ds.getPreparedPath());
+        final FileOutputStream os = new FileOutputStream(destination);
+        boolean injected = false;
+        try {
+            MakeSignature.signDeferred(reader, ds.getFieldName(), os, new ExternalSignatureContainer() {
+                @Override
+                public byte[] sign(InputStream data) throws GeneralSecurityException {
+                    return container;
+                }
 
-        final ExternalSignature es = new PrivateKeySignature(pk, hashAlg, pkcs11Provider.getName());
-        final ExternalDigest digest = new ProviderDigest(pkcs11Provider.getName());
+                @Override
+                public void modifySigningDictionary(PdfDictionary signDic) {
+                }
+            });
+            injected = true;
+        } finally {
+            os.close();
+            reader.close();
+            if (!injected) {
+                new File(destination).delete();
+            }
+        }
+    }
 
+    public final void discardSignature(final PendingSignature ps) {
         try {
-            MakeSignature.signDetached(appearance, digest, es, fullCertificateChain, crlList, ocspClient, tsaClient, 0, MakeSignature.CryptoStandard.CMS);
+            ps.getOutputStream().close();
+        } catch (IOException ex) {
+        }
+        ps.getAppearance().getStamper().getReader().close();
+        new File(ps.getDestination()).delete();
+    }
+
+    public final boolean abortSignature(final PendingSignature ps, final Exception e, final SignatureListener sl) throws IOException, SignatureFailedException {
+        return abortSignature(ps.getPdfPath(), ps.getDestination(), ps.getOutputStream(), e, sl);
+    }
+
+    private boolean abortSignature(final String pdfPath, final String destination, final OutputStream os, final Exception e, final SignatureListener sl) throws IOException, SignatureFailedException {
+        os.flush();
+        os.close();
+        new File(destination).delete();
+        checkTokenError(e);
+        if (e instanceof ExceptionConverter) {
+            // A causa (servidor, código HTTP, tentativas) fica no log
+            controller.Logger.getLogger().addEntry(((ExceptionConverter) e).getException());
+            String message = Bundle.getBundle().getString("timestampFailed");
             if (sl != null) {
-                sl.onSignatureComplete(pdfPath, true, "");
+                sl.onSignatureComplete(pdfPath, false, message);
             }
-            return true;
-        } catch (Exception e) {
-            os.flush();
-            os.close();
-            new File(destination).delete();
-            if ("sun.security.pkcs11.wrapper.PKCS11Exception: CKR_FUNCTION_CANCELED".equals(e.getMessage())) {
-                throw new SignatureFailedException(Bundle.getBundle().getString("userCanceled"));
-            } else if ("sun.security.pkcs11.wrapper.PKCS11Exception: CKR_GENERAL_ERROR".equals(e.getMessage())) {
-                throw new SignatureFailedException(Bundle.getBundle().getString("noPermissions"));
-            } else if (e instanceof ExceptionConverter) {
-                String message = Bundle.getBundle().getString("timestampFailed");
-                if (sl != null) {
-                    sl.onSignatureComplete(pdfPath, false, message);
-                }
-                throw new SignatureFailedException(message);
-            } else {
-                if (sl != null) {
-                    sl.onSignatureComplete(pdfPath, false, Bundle.getBundle().getString("unknownErrorLog"));
-                }
-                controller.Logger.getLogger().addEntry(e);
+            throw new SignatureFailedException(message);
+        } else {
+            if (sl != null) {
+                sl.onSignatureComplete(pdfPath, false, Bundle.getBundle().getString("unknownErrorLog"));
             }
-            return false;
+            controller.Logger.getLogger().addEntry(e);
+        }
+        return false;
+    }
+
+    /**
+     * Turns the token errors the user can act on (signature canceled on the
+     * PIN dialog, no permission to use the key) into their messages.
+     */
+    private static void checkTokenError(final Exception e) throws SignatureFailedException {
+        if ("sun.security.pkcs11.wrapper.PKCS11Exception: CKR_FUNCTION_CANCELED".equals(e.getMessage())) {
+            throw new SignatureFailedException(Bundle.getBundle().getString("userCanceled"));
+        } else if ("sun.security.pkcs11.wrapper.PKCS11Exception: CKR_GENERAL_ERROR".equals(e.getMessage())) {
+            throw new SignatureFailedException(Bundle.getBundle().getString("noPermissions"));
+        }
+    }
+
+    public final synchronized DocumentSession getDocumentSession(final String pdfPath) throws IOException {
+        final String key = new File(pdfPath).getAbsolutePath();
+        DocumentSession session = sessions.get(key);
+        if (null != session && (session.isClosed() || session.isStale())) {
+            sessions.remove(key);
+            session.close();
+            session = null;
+        }
+        if (null == session) {
+            session = new DocumentSession(pdfPath);
+            sessions.put(key, session);
+        }
+        return session;
+    }
+
+    /**
+     * Same as getDocumentSession, but the reader stays open until the caller
+     * releases the session, even if it is evicted or closed meanwhile.
+     */
+    private synchronized DocumentSession retainDocumentSession(final String pdfPath) throws IOException {
+        final DocumentSession session = getDocumentSession(pdfPath);
+        session.retain();
+        return session;
+    }
+
+    public final synchronized void closeDocumentSession(final String pdfPath) {
+        final DocumentSession session = sessions.remove(new File(pdfPath).getAbsolutePath());
+        if (null != session) {
+            session.close();
         }
     }
 
     public final int getNumberOfSignatures(final String pdfPath) {
-        final KeyStore keystore = KeyStoreUtil.loadCacertsKeyStore();
         try {
-            keystore.load(null, null);
-            final PdfReader reader = new PdfReader(pdfPath);
-            final int numSigs = reader.getAcroFields().getSignatureNames().size();
-            reader.close();
-            return numSigs;
+            return getDocumentSession(pdfPath).getNumberOfSignatures();
         } catch (IOException ex) {
             controller.Logger.getLogger().addEntry(ex);
-        } catch (NoSuchAlgorithmException ex) {
-            controller.Logger.getLogger().addEntry(ex);
-        } catch (CertificateException ex) {
-            controller.Logger.getLogger().addEntry(ex);
         }
         return -1;
     }
 
     public final ArrayList<SignatureValidation> validatePDF(final String file, final ValidationListener vl) throws IOException, DocumentException, GeneralSecurityException {
-        this.validating = true;
+        return validatePDF(file, vl, null);
+    }
+
+    /**
+     * Same as validatePDF, but stops (and returns null) as soon as vcl says
+     * this validation was canceled.
+     */
+    public final ArrayList<SignatureValidation> validatePDF(final String file, final ValidationListener vl, final ValidationCancelListener vcl) throws IOException, DocumentException, GeneralSecurityException {
+        final DocumentSession session = retainDocumentSession(file);
+        try {
+            return validatePDF(session, vl, vcl);
+        } finally {
+            session.release();
+        }
+    }
 
-        final PdfReader reader = new PdfReader(file);
-        final AcroFields af = reader.getAcroFields();
-        final ArrayList names = af.getSignatureNames();
+    /**
+     * Validates an already parsed document. The session does not need to be
+     * in the session cache, so callers validating many files in parallel can
+     * each use (and close) their own. Each call is canceled through its own
+     * vcl (may be null).
+     */
+    public final ArrayList<SignatureValidation> validatePDF(final DocumentSession session, final ValidationListener vl, final ValidationCancelListener vcl) throws IOException, DocumentException, GeneralSecurityException {
+        final String file = session.getFilename();
+        final AcroFields af = session.getAcroFields();
+        final ArrayList<String> names = session.getSignatureNames();
         final ArrayList<SignatureValidation> validateList = new ArrayList<>();
-        X509Certificate x509c = null;
 
         Security.setProperty("ocsp.enable", "true");
         System.setProperty("com.sun.security.enableCRLDP", "true");
 
+        // Assinaturas já validadas (mesmo ficheiro e certificados de
+        // confiança) são respondidas pela cache
+        final File f = new File(file);
+        final String trustVersion = getTrustVersion();
+        final ValidationCache cache = ValidationCache.getValidationCache();
+        final ArrayList<String> keys = new ArrayList<>();
+        final ArrayList<VerifiedSignature> cached = new ArrayList<>();
+        final ArrayList<ValidationCache.Entry> previous = new ArrayList<>();
+
+        // Os intervalos das assinaturas incrementais estão encaixados: o
+        // ficheiro é lido uma só vez para todas as assinaturas
+        final ByteRangeDigester digester = new ByteRangeDigester(file);
+        final ArrayList<PdfPKCS7> pks = new ArrayList<>();
+        for (final String name : names) {
+            final String key = ValidationCache.getKey(af.getSignatureDictionary(name));
+            keys.add(key);
+            cached.add(null);
+            // Assinatura validada neste ficheiro (tem de ter o mesmo conteúdo,
+            // pode ter sido editado mantendo o tamanho e a data) ou numa
+            // versão anterior (antes de lhe ser acrescentada uma revisão):
+            // basta confirmar o hash do ficheiro ou do prefixo
+            ValidationCache.Entry previousEntry = cache.get(key, f, trustVersion);
+            if (null == previousEntry) {
+                previousEntry = cache.getPrevious(key, f, trustVersion);
+            }
+            previous.add(previousEntry);
+            if (null != previousEntry) {
+                digester.addPrefix(previousEntry.getFileLength());
+                pks.add(null);
+            } else {
+                pks.add(digester.addSignature(af, name, "BC"));
+            }
+        }
+        digester.digest(getVerifyPool());
+
+        // Hashes que não coincidem: o ficheiro foi alterado, verificar
+        final ByteRangeDigester changedDigester = new ByteRangeDigester(file);
+        final MerkleTimestamp batchTimestamp = MerkleTimestamp.read(file);
+        for (int i = 0; i < names.size(); i++) {
+            final ValidationCache.Entry previousEntry = previous.get(i);
+            if (null == previousEntry) {
+                continue;
+            }
+            if (previousEntry.getFileHash().equals(digester.getPrefixHash(previousEntry.getFileLength()))) {
+                cached.set(i, toVerifiedSignature(af, names.get(i), previousEntry));
+                cache.rebind(keys.get(i), previousEntry, f, digester.getFileHash());
+            } else {
+                pks.set(i, changedDigester.addSignature(af, names.get(i), "BC"));
+            }
+        }
+        changedDigester.digest(getVerifyPool());
+        final String fileHash = (null != digester.getFileHash() ? digester.getFileHash() : changedDigester.getFileHash());
+
+        // As assinaturas são independentes: verificar em paralelo (os
+        // PdfPKCS7 já foram lidos do documento, o leitor não é usado)
+        final ArrayList<Future<VerifiedSignature>> futures = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            if (null != cached.get(i)) {
+                futures.add(null);
+                continue;
+            }
+            final PdfPKCS7 pk = pks.get(i);
+            futures.add(getVerifyPool().submit(new Callable<VerifiedSignature>() {
+                @Override
+                public VerifiedSignature call() throws Exception {
+                    return verifySignature(pk);
+                }
+            }));
+        }
+
         boolean nextValid = true;
 
-        for (Object o : names) {
-            if (!validating) {
-                return null;
-            }
+        // Resultados aplicados por ordem de revisão
+        try {
+            for (int i = 0; i < names.size(); i++) {
+                if (null != vcl && vcl.isValidationCanceled(file)) {
+                    return null;
+                }
+                final String name = names.get(i);
+                VerifiedSignature verified = cached.get(i);
+                if (null == verified) {
+                    verified = getVerifiedSignature(futures.get(i));
+                    if (null == verified) {
+                        return null;
+                    }
+                    // Carimbo temporal do lote (ficheiro .merkle ao lado do PDF)
+                    if (!verified.validTimestamp && null != batchTimestamp && batchTimestamp.verify(af.getSignatureDictionary(name).getAsString(PdfName.CONTENTS).getOriginalBytes(), getKeystore())) {
+                        verified = new VerifiedSignature(verified.pk, verified.valid, verified.ocspCertificateStatus, verified.crlCertificateStatus, true);
+                    }
+                    cache.put(keys.get(i), f, fileHash, trustVersion, verified.valid, verified.ocspCertificateStatus, verified.crlCertificateStatus, verified.validTimestamp);
+                }
+                final PdfPKCS7 pk = verified.pk;
+
+                PdfDictionary pdfDic = af.getSignatureDictionary(name);
+                SignaturePermissions sp = new SignaturePermissions(pdfDic, null);
 
-            final String name = (String) o;
-            final PdfPKCS7 pk = af.verifySignature(name, "BC");
-            final Certificate pkc[] = pk.getCertificates();
-            x509c = (X509Certificate) pkc[pkc.length - 1];
+                boolean isValid = nextValid && verified.valid;
 
-            final Certificate[] aL = pkc;//getCompleteCertificateChain(x509c);
+                List<AcroFields.FieldPosition> posList = af.getFieldPositions(name);
+                final SignatureValidation signature = new SignatureValidation(file, name, pk, !verified.valid, af.signatureCoversWholeDocument(name), af.getRevision(name), af.getTotalRevisions(), session.getCertificationLevel(), verified.ocspCertificateStatus, verified.crlCertificateStatus, verified.validTimestamp, posList, sp, isValid);
+                validateList.add(signature);
 
-            if (null == aL || 0 == aL.length) {
-                return null;
+                if (null != vl) {
+                    vl.onValidationComplete(signature);
+                }
+                if (!sp.isFillInAllowed()) {
+                    nextValid = false;
+                }
             }
+        } finally {
+            for (Future<VerifiedSignature> future : futures) {
+                if (null != future) {
+                    future.cancel(true);
+                }
+            }
+        }
+        return validateList;
+    }
 
-            CertificateStatus ocspCertificateStatus = CertificateStatus.UNCHECKED;
+    /**
+     * Per-signature work of validatePDF that does not depend on the other
+     * signatures: CMS verification, revocation status, chain completion and
+     * timestamp imprint. The byte range must already have been digested.
+     */
+    private VerifiedSignature verifySignature(final PdfPKCS7 pk) throws IOException, GeneralSecurityException {
+        if (null == pk) {
+            return null;
+        }
+        final Certificate pkc[] = pk.getCertificates();
+        if (null == pkc || 0 == pkc.length) {
+            return null;
+        }
+        final X509Certificate x509c = (X509Certificate) pkc[pkc.length - 1];
+
+        CertificateStatus ocspCertificateStatus = CertificateStatus.UNCHECKED;
 
-            BasicOCSPResp ocspResp = pk.getOcsp();
-            if (null != ocspResp && pk.isRevocationValid()) {
-                for (SingleResp singleResp : ocspResp.getResponses()) {
-                    if (null == singleResp.getCertStatus()) {
+        BasicOCSPResp ocspResp = pk.getOcsp();
+        if (null != ocspResp && pk.isRevocationValid()) {
+            for (SingleResp singleResp : ocspResp.getResponses()) {
+                if (null == singleResp.getCertStatus()) {
+                    ocspCertificateStatus = CertificateStatus.OK;
+                } else if (singleResp.getCertStatus() instanceof RevokedStatus) {
+                    if (ocspResp.getProducedAt().before(((RevokedStatus) singleResp.getCertStatus()).getRevocationTime())) {
                         ocspCertificateStatus = CertificateStatus.OK;
-                    } else if (singleResp.getCertStatus() instanceof RevokedStatus) {
-                        if (ocspResp.getProducedAt().before(((RevokedStatus) singleResp.getCertStatus()).getRevocationTime())) {
-                            ocspCertificateStatus = CertificateStatus.OK;
-                        } else {
-                            ocspCertificateStatus = CertificateStatus.REVOKED;
-                        }
-                    } else if (singleResp.getCertStatus() instanceof UnknownStatus) {
-                        ocspCertificateStatus = CertificateStatus.UNKNOWN;
+                    } else {
+                        ocspCertificateStatus = CertificateStatus.REVOKED;
                     }
+                } else if (singleResp.getCertStatus() instanceof UnknownStatus) {
+                    ocspCertificateStatus = CertificateStatus.UNKNOWN;
                 }
             }
+        }
 
-            CertificateStatus crlCertificateStatus = CertificateStatus.UNCHECKED;
-            Collection<CRL> crlResp = pk.getCRLs();
-            if (null != crlResp) {
-                boolean revoked = false;
-                for (CRL crl : crlResp) {
-                    if (crl.isRevoked(x509c)) {
-                        revoked = true;
-                    }
+        CertificateStatus crlCertificateStatus = CertificateStatus.UNCHECKED;
+        Collection<CRL> crlResp = pk.getCRLs();
+        if (null != crlResp) {
+            boolean revoked = false;
+            for (CRL crl : crlResp) {
+                if (crl.isRevoked(x509c)) {
+                    revoked = true;
                 }
-                crlCertificateStatus = revoked ? CertificateStatus.REVOKED : CertificateStatus.OK;
             }
+            crlCertificateStatus = revoked ? CertificateStatus.REVOKED : CertificateStatus.OK;
+        }
 
-            if (ocspCertificateStatus.equals(CertificateStatus.UNCHECKED) && crlCertificateStatus.equals(CertificateStatus.UNCHECKED)) {
-                if (pkc.length == 1) {
-                    Certificate[] completeChain = getCompleteTrustedCertificateChain(x509c);
-                    if (completeChain.length == 1) {
-                        ocspCertificateStatus = CertificateStatus.UNCHAINED;
-                    } else {
-                        ocspCertificateStatus = CertificateStatus.CHAINED_LOCALLY;
-                    }
-                }
+        final TimeStampToken tst = pk.getTimeStampToken();
+        boolean validTimestamp = false;
+        if (null != tst) {
+            final boolean hasTimestamp = pk.verifyTimestampImprint();
+            validTimestamp = hasTimestamp && CertificateVerification.verifyTimestampCertificates(tst, getKeystore(), null);
+        }
+
+        // Sem informação de revogação embebida: perguntar ao responder OCSP
+        // e, se não responder, consultar a CRL do ponto de distribuição
+        if (ocspCertificateStatus.equals(CertificateStatus.UNCHECKED) && crlCertificateStatus.equals(CertificateStatus.UNCHECKED)) {
+            final X509Certificate signCert = pk.getSigningCertificate();
+            final X509Certificate issuerCert = getIssuerCertificate(signCert, pkc);
+            // Só a data de um carimbo temporal verificado conta: a /M é escrita
+            // por quem assina, e com ela uma chave revogada passaria a válida
+            final Date signDate = (validTimestamp ? pk.getTimeStampDate().getTime() : null);
+            ocspCertificateStatus = OcspCache.getOcspCache().getStatus(signCert, issuerCert, signDate);
+            if (ocspCertificateStatus.equals(CertificateStatus.UNCHECKED)) {
+                crlCertificateStatus = CrlCache.getCrlCache().getStatus(signCert, issuerCert, signDate);
             }
+        }
 
-            final TimeStampToken tst = pk.getTimeStampToken();
-            boolean validTimestamp = false;
-            if (null != tst) {
-                final boolean hasTimestamp = pk.verifyTimestampImprint();
-                validTimestamp = hasTimestamp && CertificateVerification.verifyTimestampCertificates(tst, ks, null);
+        if (ocspCertificateStatus.equals(CertificateStatus.UNCHECKED) && crlCertificateStatus.equals(CertificateStatus.UNCHECKED)) {
+            if (pkc.length == 1) {
+                Certificate[] completeChain = getCompleteTrustedCertificateChain(x509c);
+                if (completeChain.length == 1) {
+                    ocspCertificateStatus = CertificateStatus.UNCHAINED;
+                } else {
+                    ocspCertificateStatus = CertificateStatus.CHAINED_LOCALLY;
+                }
             }
+        }
 
-            PdfDictionary pdfDic = reader.getAcroFields().getSignatureDictionary(name);
-            SignaturePermissions sp = new SignaturePermissions(pdfDic, null);
+        // Uma única verificação serve para o isValid e para o changed
+        return new VerifiedSignature(pk, pk.verify(), ocspCertificateStatus, crlCertificateStatus, validTimestamp);
+    }
 
-            boolean isValid;
-            if (nextValid) {
-                isValid = pk.verify();
-            } else {
-                isValid = false;
+    /**
+     * @return the issuer of cert, from the certificates embedded in the
+     * signature or from the trusted certificates, or null
+     */
+    private X509Certificate getIssuerCertificate(final X509Certificate cert, final Certificate[] embedded) {
+        if (null == cert) {
+            return null;
+        }
+        for (Certificate c : embedded) {
+            final X509Certificate candidate = (X509Certificate) c;
+            if (!candidate.equals(cert) && candidate.getSubjectX500Principal().equals(cert.getIssuerX500Principal())) {
+                try {
+                    cert.verify(candidate.getPublicKey());
+                    return candidate;
+                } catch (GeneralSecurityException ex) {
+                }
             }
+        }
+        final TrustStoreIndex index = getTrustStoreIndex();
+        return null == index ? null : index.getIssuer(cert);
+    }
 
-            List<AcroFields.FieldPosition> posList = af.getFieldPositions(name);
-            final SignatureValidation signature = new SignatureValidation(file, name, pk, !pk.verify(), af.signatureCoversWholeDocument(name), af.getRevision(name), af.getTotalRevisions(), reader.getCertificationLevel(), ocspCertificateStatus, crlCertificateStatus, validTimestamp, posList, sp, isValid);
-            validateList.add(signature);
+    private VerifiedSignature toVerifiedSignature(final AcroFields af, final String name, final ValidationCache.Entry entry) {
+        final PdfPKCS7 pk = ByteRangeDigester.readSignature(af, name, "BC");
+        return new VerifiedSignature(pk, entry.isValid(), entry.getOcspCertificateStatus(), entry.getCrlCertificateStatus(), entry.isValidTimestamp());
+    }
 
-            if (null != vl) {
-                vl.onValidationComplete(signature);
-            }
-            if (!sp.isFillInAllowed()) {
-                nextValid = false;
+    /**
+     * @return the version of the trusted certificates the validation results
+     * depend on
+     */
+    private String getTrustVersion() {
+        final TrustStoreIndex index = getTrustStoreIndex();
+        return null == index ? "none" : index.getVersion();
+    }
+
+    private VerifiedSignature getVerifiedSignature(final Future<VerifiedSignature> future) throws IOException, DocumentException, GeneralSecurityException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
             }
+            throw new GeneralSecurityException(cause);
         }
-        return validateList;
     }
 
-    public File extractRevision(final String filePath, final String revision) throws IOException, RevisionExtractionException {
-        final PdfReader reader = new PdfReader(filePath);
-        final AcroFields af = reader.getAcroFields();
-        final File fout = File.createTempFile("temp", " - " + WordUtils.capitalize(Bundle.getBundle().getString("revision")) + ": " + revision + ".pdf");
-        final FileOutputStream os = new FileOutputStream(fout);
-        final byte bb[] = new byte[1028];
-        final InputStream ip = af.extractRevision(revision);
-        if (null == ip) {
-            throw new RevisionExtractionException();
-        }
-        int n = 0;
-        while ((n = ip.read(bb)) > 0) {
-            os.write(bb, 0, n);
+    private ExecutorService verifyPool;
+
+    private synchronized ExecutorService getVerifyPool() {
+        if (null == verifyPool) {
+            verifyPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread t = new Thread(r, "SignatureVerifier");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
         }
-        os.close();
-        ip.close();
-        return fout;
+        return verifyPool;
     }
 
-    private String userLoadLibraryPKCS11() {
-        JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setDialogTitle(Bundle.getBundle().getString("openLibrary"));
-        int userSelection = fileChooser.showSaveDialog(null);
-        if (userSelection == JFileChooser.APPROVE_OPTION) {
-            String dest = fileChooser.getSelectedFile().getAbsolutePath();
-            File file = new File(dest);
-            if (file.exists()) {
-                return dest;
+    private static final class VerifiedSignature {
+
+        private final PdfPKCS7 pk;
+        private final boolean valid;
+        private final CertificateStatus ocspCertificateStatus;
+        private final CertificateStatus crlCertificateStatus;
+        private final boolean validTimestamp;
+
+        private VerifiedSignature(PdfPKCS7 pk, boolean valid, CertificateStatus ocspCertificateStatus, CertificateStatus crlCertificateStatus, boolean validTimestamp) {
+            this.pk = pk;
+            this.valid = valid;
+            this.ocspCertificateStatus = ocspCertificateStatus;
+            this.crlCertificateStatus = crlCertificateStatus;
+            this.validTimestamp = validTimestamp;
+        }
+    }
+
+    public File extractRevision(final String filePath, final String revision) throws IOException, RevisionExtractionException {
+        final DocumentSession session = retainDocumentSession(filePath);
+        try {
+            final AcroFields af = session.getAcroFields();
+            final File fout = File.createTempFile("temp", " - " + WordUtils.capitalize(Bundle.getBundle().getString("revision")) + ": " + revision + ".pdf");
+            final FileOutputStream os = new FileOutputStream(fout);
+            final byte bb[] = new byte[1028];
+            final InputStream ip = af.extractRevision(revision);
+            if (null == ip) {
+                throw new RevisionExtractionException();
+            }
+            int n = 0;
+            while ((n = ip.read(bb)) > 0) {
+                os.write(bb, 0, n);
             }
+            os.close();
+            ip.close();
+            return fout;
+        } finally {
+            session.release();
         }
-        return null;
     }
 
     private KeyStore defaultKs;
@@ -717,15 +1129,52 @@ public class CCInstance {
         return defaultKs;
     }
 
-    public KeyStore getKeystore() {
+    public synchronized KeyStore getKeystore() {
         return this.ks;
     }
 
-    public void setKeystore(KeyStore ks) {
+    public synchronized void setKeystore(KeyStore ks) {
         this.ks = ks;
+        this.trustStoreIndex = null;
+    }
+
+    /**
+     * @return the index of the trusted certificates of the current keystore,
+     * rebuilt if the keystore was replaced or changed (in memory or on disk)
+     */
+    public synchronized TrustStoreIndex getTrustStoreIndex() {
+        if (null == ks) {
+            return null;
+        }
+        final String keystorePath = Settings.getSettings().getKeystorePath();
+        if (null != trustStoreIndex && trustStoreIndex.isCurrent(ks, keystorePath)) {
+            return trustStoreIndex;
+        }
+        if (null != trustStoreIndex && trustStoreIndex.isFileChanged()) {
+            // Keystore alterado fora da aplicação
+            try (InputStream fis = new FileInputStream(keystorePath)) {
+                final KeyStore newKs = KeyStore.getInstance(KeyStore.getDefaultType());
+                newKs.load(fis, null);
+                ks = newKs;
+            } catch (KeyStoreException | IOException | NoSuchAlgorithmException | CertificateException ex) {
+                Logger.getLogger().addEntry(ex);
+            }
+        }
+        try {
+            trustStoreIndex = new TrustStoreIndex(ks, keystorePath);
+        } catch (KeyStoreException | InvalidAlgorithmParameterException ex) {
+            trustStoreIndex = null;
+        }
+        return trustStoreIndex;
     }
 
     public ArrayList<Certificate> getTrustedCertificatesFromKeystore(KeyStore keystore) throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, InvalidAlgorithmParameterException {
+        if (keystore == getKeystore()) {
+            final TrustStoreIndex index = getTrustStoreIndex();
+            if (null != index) {
+                return index.getTrustedCertificates();
+            }
+        }
 
         final PKIXParameters params = new PKIXParameters(keystore);
         final ArrayList<Certificate> alTrustedCertificates = new ArrayList<>();
@@ -739,53 +1188,19 @@ public class CCInstance {
     }
 
     public Certificate hasTrustedIssuerCertificate(final X509Certificate x509c) {
-        ArrayList<Certificate> alTrustedCertificates;
-        try {
-            alTrustedCertificates = getTrustedCertificatesFromKeystore(getKeystore());
-        } catch (KeyStoreException | IOException | NoSuchAlgorithmException | CertificateException | InvalidAlgorithmParameterException ex) {
+        final TrustStoreIndex index = getTrustStoreIndex();
+        if (null == index) {
             return null;
         }
-
-        if (alTrustedCertificates.isEmpty()) {
-            return null;
-        }
-
-        for (final Certificate c : alTrustedCertificates) {
-            try {
-                final X509Certificate x509cc = (X509Certificate) c;
-                if (x509c.getIssuerX500Principal().equals(x509cc.getSubjectX500Principal())) {
-                    return c;
-                }
-            } catch (Exception e) {
-                return null;
-            }
-        }
-        return null;
+        return index.getIssuer(x509c);
     }
 
     public boolean isTrustedCertificate(final X509Certificate x509c) {
-        ArrayList<Certificate> alTrustedCertificates;
-        try {
-            alTrustedCertificates = getTrustedCertificatesFromKeystore(getKeystore());
-        } catch (KeyStoreException | IOException | NoSuchAlgorithmException | CertificateException | InvalidAlgorithmParameterException ex) {
+        final TrustStoreIndex index = getTrustStoreIndex();
+        if (null == index) {
             return false;
         }
-
-        if (alTrustedCertificates.isEmpty()) {
-            return false;
-        }
-
-        for (final Certificate c : alTrustedCertificates) {
-            try {
-                final X509Certificate x509cc = (X509Certificate) c;
-                if (x509c.getSubjectX500Principal().equals(x509cc.getSubjectX500Principal())) {
-                    return true;
-                }
-            } catch (Exception e) {
-                return false;
-            }
-        }
-        return false;
+        return index.isTrusted(x509c);
     }
 
     public final String getCurrentFolder() {
@@ -828,61 +1243,7 @@ public class CCInstance {
     }
 
     public final int getCertificationLevel(final String filename) throws IOException {
-        final PdfReader reader = new PdfReader(filename);
-        final int certLevel = reader.getCertificationLevel();
-        reader.close();
-        return certLevel;
-    }
-
-    private boolean validating;
-
-    public void setValidating(boolean validating) {
-        this.validating = validating;
-    }
-
-    private OCSPResp getOcspResponse(X509Certificate checkCert, X509Certificate rootCert) throws GeneralSecurityException, OCSPException, IOException, OperatorException {
-        if (checkCert == null || rootCert == null) {
-            return null;
-        }
-        String url = CertificateUtil.getOCSPURL(checkCert);
-
-        if (url == null) {
-            return null;
-        }
-        try {
-            OCSPReq request = generateOCSPRequest(rootCert, checkCert.getSerialNumber());
-            byte[] array = request.getEncoded();
-            URL urlt = new URL(url);
-            HttpURLConnection con = (HttpURLConnection) urlt.openConnection();
-            con.setRequestProperty("Content-Type", "application/ocsp-request");
-            con.setRequestProperty("Accept", "application/ocsp-response");
-            con.setDoOutput(true);
-
-            OutputStream out = con.getOutputStream();
-            try (DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out))) {
-                dataOut.write(array);
-                dataOut.flush();
-            }
-
-            if (con.getResponseCode() / 100 != 2) {
-                throw new IOException(MessageLocalization.getComposedMessage("invalid.http.response.1", con.getResponseCode()));
-            }
-            //Get Response
-            InputStream in = (InputStream) con.getContent();
-            return new OCSPResp(in);
-        } catch (Exception e) {
-            return null;
-        }
-    }
-
-    private static OCSPReq generateOCSPRequest(X509Certificate issuerCert, BigInteger serialNumber) throws OCSPException, IOException, OperatorException, CertificateEncodingException {
-        Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
-        CertificateID id = new CertificateID(new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1), new JcaX509CertificateHolder(issuerCert), serialNumber);
-        OCSPReqBuilder gen = new OCSPReqBuilder();
-        gen.addRequest(id);
-        Extension ext = new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false, new DEROctetString(new DEROctetString(PdfEncryption.createDocumentId()).getEncoded()));
-        gen.setRequestExtensions(new Extensions(new Extension[]{ext}));
-        return gen.build();
+        return getDocumentSession(filename).getCertificationLevel();
     }
 
     public String getCertificateProperty(X500Name x500name, String property) {
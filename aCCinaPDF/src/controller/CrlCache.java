@@ -0,0 +1,442 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import com.itextpdf.text.pdf.security.CertificateUtil;
+import com.itextpdf.text.pdf.security.CrlClient;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import model.CertificateStatus;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.operator.ContentVerifier;
+import org.bouncycastle.operator.OperatorException;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Certificate revocation lists of the distribution points of the signing
+ * certificates. Each CRL is downloaded once, kept on disk until its
+ * nextUpdate and reduced to an index of revoked serial numbers, so checking a
+ * certificate is a hash lookup no matter how large the CRL is.
+ *
+ * @author Diogo
+ */
+public final class CrlCache {
+
+    private static final String CACHE_DIR = "aCCinaPDF.crl";
+    // CRLs sem nextUpdate
+    private static final long DEFAULT_TTL = 24L * 60 * 60 * 1000;
+    // Falhas (sem rede, servidor em baixo) não são repetidas para cada assinatura
+    private static final long FAILURE_TTL = 5L * 60 * 1000;
+    private static final int MAX_CERTIFICATES = 1000;
+
+    private static final CrlCache crlCache = new CrlCache();
+
+    public static CrlCache getCrlCache() {
+        return crlCache;
+    }
+
+    private final ConcurrentHashMap<String, RevocationList> lists = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Future<RevocationList>> inFlight = new ConcurrentHashMap<>();
+    // Até quando não se volta a tentar descarregar cada CRL
+    private final ConcurrentHashMap<String, Long> failures = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<X509Certificate, String> crlUrls = new ConcurrentHashMap<>();
+    private volatile boolean enabled = true;
+    private volatile int timeout = 10000;
+
+    private CrlCache() {
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @param date when the certificate was used: a revocation after this date
+     * does not invalidate the signature. Must come from a verified timestamp
+     * (never from the signer's own /M date), or be null.
+     */
+    public CertificateStatus getStatus(final X509Certificate cert, final X509Certificate issuerCert, final Date date) {
+        final RevocationList list = getRevocationList(cert, issuerCert, null);
+        if (null == list) {
+            return CertificateStatus.UNCHECKED;
+        }
+        final Long revocationDate = list.revoked.get(cert.getSerialNumber());
+        if (null == revocationDate) {
+            return CertificateStatus.OK;
+        }
+        if (null != date && date.getTime() < revocationDate) {
+            return CertificateStatus.OK;
+        }
+        return CertificateStatus.REVOKED;
+    }
+
+    /**
+     * @return a client that embeds the cached CRLs of the certificates of
+     * chain when signing
+     */
+    public CrlClient getCrlClient(final Certificate[] chain) {
+        return new CrlClient() {
+            @Override
+            public Collection<byte[]> getEncoded(X509Certificate checkCert, String url) {
+                final RevocationList list = getRevocationList(checkCert, findIssuer(checkCert, chain), url);
+                if (null == list) {
+                    return null;
+                }
+                try {
+                    final ArrayList<byte[]> encoded = new ArrayList<>(1);
+                    encoded.add(Files.readAllBytes(list.file.toPath()));
+                    return encoded;
+                } catch (IOException ex) {
+                    return null;
+                }
+            }
+        };
+    }
+
+    private RevocationList getRevocationList(final X509Certificate cert, final X509Certificate issuerCert, String url) {
+        if (!enabled || null == cert || null == issuerCert) {
+            return null;
+        }
+        if (null == url) {
+            url = getCrlUrl(cert);
+        }
+        if (null == url || !url.toLowerCase().startsWith("http")) {
+            return null;
+        }
+
+        final RevocationList list = lists.get(url);
+        if (null != list && list.isFresh() && list.isIssuedBy(issuerCert)) {
+            return list;
+        }
+        final Long failedUntil = failures.get(url);
+        if (null != failedUntil && System.currentTimeMillis() < failedUntil) {
+            return null;
+        }
+        final String crlUrl = url;
+        final FutureTask<RevocationList> task = new FutureTask<>(new Callable<RevocationList>() {
+            @Override
+            public RevocationList call() {
+                try {
+                    final RevocationList loaded = load(crlUrl, issuerCert);
+                    if (null != loaded) {
+                        lists.put(crlUrl, loaded);
+                        failures.remove(crlUrl);
+                    } else {
+                        failures.put(crlUrl, System.currentTimeMillis() + FAILURE_TTL);
+                    }
+                    return loaded;
+                } finally {
+                    inFlight.remove(crlUrl);
+                }
+            }
+        });
+        Future<RevocationList> running = inFlight.putIfAbsent(crlUrl, task);
+        if (null == running) {
+            task.run();
+            running = task;
+        }
+        try {
+            final RevocationList loaded = running.get();
+            return null != loaded && loaded.isIssuedBy(issuerCert) ? loaded : null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+        }
+        return null;
+    }
+
+    private String getCrlUrl(final X509Certificate cert) {
+        String url = crlUrls.get(cert);
+        if (null == url) {
+            try {
+                url = CertificateUtil.getCRLURL(cert);
+            } catch (GeneralSecurityException ex) {
+            }
+            if (crlUrls.size() > MAX_CERTIFICATES) {
+                crlUrls.clear();
+            }
+            crlUrls.put(cert, null == url ? "" : url);
+        }
+        return url;
+    }
+
+    /**
+     * Reads the CRL from disk, or downloads it if it is missing or expired.
+     */
+    private RevocationList load(final String url, final X509Certificate issuerCert) {
+        final File file = getFile(url);
+        if (file.exists()) {
+            try {
+                final RevocationList list = RevocationList.parse(Files.readAllBytes(file.toPath()), file, issuerCert);
+                if (null != list && list.isFresh()) {
+                    return list;
+                }
+            } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+                // Ficheiro corrompido: voltar a descarregar
+            }
+        }
+        try {
+            final byte[] encoded = download(url);
+            final RevocationList list = RevocationList.parse(encoded, file, issuerCert);
+            if (null == list) {
+                return null;
+            }
+            file.getParentFile().mkdirs();
+            final File tmp = new File(file.getPath() + ".tmp");
+            Files.write(tmp.toPath(), encoded);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return list;
+        } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+            controller.Logger.getLogger().addEntry(ex);
+            return null;
+        }
+    }
+
+    private byte[] download(final String url) throws IOException {
+        final HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+        con.setConnectTimeout(timeout);
+        con.setReadTimeout(timeout);
+        if (con.getResponseCode() / 100 != 2) {
+            throw new IOException(url + ": " + con.getResponseCode());
+        }
+        try (InputStream in = con.getInputStream(); ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(con.getContentLength(), 1024))) {
+            final byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                out.write(buf, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static File getFile(final String url) {
+        try {
+            return new File(CACHE_DIR, new String(Hex.encode(MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8")))) + ".crl");
+        } catch (GeneralSecurityException | IOException ex) {
+            return new File(CACHE_DIR, Integer.toHexString(url.hashCode()) + ".crl");
+        }
+    }
+
+    private static X509Certificate findIssuer(final X509Certificate cert, final Certificate[] chain) {
+        for (Certificate c : chain) {
+            final X509Certificate candidate = (X509Certificate) c;
+            if (!candidate.equals(cert) && candidate.getSubjectX500Principal().equals(cert.getIssuerX500Principal())) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Revoked serial numbers of one CRL and their revocation dates.
+     */
+    private static final class RevocationList {
+
+        private final File file;
+        private final byte[] issuer;
+        private final Date thisUpdate;
+        private final Date nextUpdate;
+        private final HashMap<BigInteger, Long> revoked;
+
+        private RevocationList(File file, byte[] issuer, Date thisUpdate, Date nextUpdate, HashMap<BigInteger, Long> revoked) {
+            this.file = file;
+            this.issuer = issuer;
+            this.thisUpdate = thisUpdate;
+            this.nextUpdate = nextUpdate;
+            this.revoked = revoked;
+        }
+
+        private boolean isFresh() {
+            final long expiry = (null != nextUpdate ? nextUpdate.getTime() : thisUpdate.getTime() + DEFAULT_TTL);
+            return System.currentTimeMillis() < expiry;
+        }
+
+        private boolean isIssuedBy(final X509Certificate issuerCert) {
+            return Arrays.equals(issuer, issuerCert.getSubjectX500Principal().getEncoded());
+        }
+
+        /**
+         * Walks the DER encoding of the CRL collecting the revoked serial
+         * numbers, without building a certificate object for each entry,
+         * and checks the signature over the raw tbsCertList.
+         *
+         * @return the list, or null if it was not signed by issuerCert
+         */
+        private static RevocationList parse(final byte[] encoded, final File file, final X509Certificate issuerCert) throws IOException, GeneralSecurityException {
+            final DerReader crl = new DerReader(encoded, 0, encoded.length);
+            crl.next(0x30);
+            final DerReader certList = crl.content();
+
+            certList.next(0x30);
+            final int tbsStart = certList.start;
+            final int tbsEnd = certList.end();
+            final DerReader tbs = certList.content();
+            certList.next(0x30);
+            final AlgorithmIdentifier algorithm = AlgorithmIdentifier.getInstance(certList.toPrimitive());
+            certList.next(0x03);
+            final byte[] signature = Arrays.copyOfRange(encoded, certList.contentStart + 1, certList.end());
+
+            try {
+                final ContentVerifier verifier = new JcaContentVerifierProviderBuilder().build(issuerCert.getPublicKey()).get(algorithm);
+                try (OutputStream os = verifier.getOutputStream()) {
+                    os.write(encoded, tbsStart, tbsEnd - tbsStart);
+                }
+                if (!verifier.verify(signature)) {
+                    return null;
+                }
+            } catch (OperatorException ex) {
+                throw new GeneralSecurityException(ex);
+            }
+
+            tbs.next(-1);
+            if (0x02 == tbs.tag) {
+                // Versão
+                tbs.next(-1);
+            }
+            tbs.next(0x30);
+            final byte[] issuer = Arrays.copyOfRange(encoded, tbs.start, tbs.end());
+            tbs.next(-1);
+            final Date thisUpdate = Time.getInstance(tbs.toPrimitive()).getDate();
+            Date nextUpdate = null;
+            final HashMap<BigInteger, Long> revoked = new HashMap<>();
+            while (tbs.hasNext()) {
+                tbs.next(-1);
+                if ((0x17 == tbs.tag || 0x18 == tbs.tag) && null == nextUpdate) {
+                    nextUpdate = Time.getInstance(tbs.toPrimitive()).getDate();
+                } else if (0x30 == tbs.tag) {
+                    final DerReader entries = tbs.content();
+                    while (entries.hasNext()) {
+                        entries.next(0x30);
+                        final DerReader entry = entries.content();
+                        entry.next(0x02);
+                        final BigInteger serial = new BigInteger(Arrays.copyOfRange(encoded, entry.contentStart, entry.end()));
+                        entry.next(-1);
+                        revoked.put(serial, Time.getInstance(entry.toPrimitive()).getDate().getTime());
+                    }
+                }
+            }
+            return new RevocationList(file, issuer, thisUpdate, nextUpdate, revoked);
+        }
+    }
+
+    /**
+     * Minimal reader of definite-length DER elements.
+     */
+    private static final class DerReader {
+
+        private final byte[] buf;
+        private final int limit;
+        private int pos;
+        private int start;
+        private int tag;
+        private int contentStart;
+        private int length;
+
+        private DerReader(byte[] buf, int offset, int limit) {
+            this.buf = buf;
+            this.pos = offset;
+            this.limit = limit;
+        }
+
+        private boolean hasNext() {
+            return pos < limit;
+        }
+
+        /**
+         * @param expectedTag the tag the next element must have, or -1
+         */
+        private void next(final int expectedTag) throws IOException {
+            if (pos + 2 > limit) {
+                throw new IOException("Truncated CRL");
+            }
+            start = pos;
+            tag = buf[pos++] & 0xff;
+            int len = buf[pos++] & 0xff;
+            if (len > 0x7f) {
+                final int n = len & 0x7f;
+                if (0 == n || n > 4 || pos + n > limit) {
+                    throw new IOException("Invalid CRL length");
+                }
+                len = 0;
+                for (int i = 0; i < n; i++) {
+                    len = (len << 8) | (buf[pos++] & 0xff);
+                }
+            }
+            if (len < 0 || pos + len > limit) {
+                throw new IOException("Truncated CRL");
+            }
+            if (-1 != expectedTag && tag != expectedTag) {
+                throw new IOException("Unexpected CRL element " + tag);
+            }
+            contentStart = pos;
+            length = len;
+            pos += len;
+        }
+
+        private int end() {
+            return contentStart + length;
+        }
+
+        private DerReader content() {
+            return new DerReader(buf, contentStart, end());
+        }
+
+        private ASN1Primitive toPrimitive() throws IOException {
+            return ASN1Primitive.fromByteArray(Arrays.copyOfRange(buf, start, end()));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import java.io.Serializable;
+import java.util.Calendar;
+
+/**
+ * Result of the first phase of a deferred signature: a prepared document with
+ * an empty signature container and the digest of its byte range. It only holds
+ * plain values so it can be stored and the signature finished later, in
+ * another token session or another process.
+ *
+ * @author Diogo
+ */
+public final class DeferredSignature implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String pdfPath;
+    private final String preparedPath;
+    private final String fieldName;
+    private final String hashAlgorithm;
+    private final byte[] digest;
+    private final long signDate;
+    private final int estimatedSize;
+
+    public DeferredSignature(String pdfPath, String preparedPath, String fieldName, String hashAlgorithm, byte[] digest, long signDate, int estimatedSize) {
+        this.pdfPath = pdfPath;
+        this.preparedPath = preparedPath;
+        this.fieldName = fieldName;
+        this.hashAlgorithm = hashAlgorithm;
+        this.digest = digest;
+        this.signDate = signDate;
+        this.estimatedSize = estimatedSize;
+    }
+
+    public String getPdfPath() {
+        return pdfPath;
+    }
+
+    public String getPreparedPath() {
+        return preparedPath;
+    }
+
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public byte[] getDigest() {
+        return digest;
+    }
+
+    public Calendar getSignDate() {
+        final Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(signDate);
+        return cal;
+    }
+
+    public int getEstimatedSize() {
+        return estimatedSize;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import com.itextpdf.text.pdf.AcroFields;
+import com.itextpdf.text.pdf.PdfReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Parsed state of one PDF file (reader, form fields, signature names,
+ * certification level and page count), so the file is only parsed once no
+ * matter how many CCInstance methods look at it.
+ *
+ * @author Diogo
+ */
+public final class DocumentSession {
+
+    private final String filename;
+    private final long lastModified;
+    private final long length;
+    private final PdfReader reader;
+    private final AcroFields acroFields;
+    private final ArrayList<String> signatureNames;
+    private final int certificationLevel;
+    private final int numberOfPages;
+    private boolean closed;
+    // Threads que estão a ler o documento; o reader só é fechado quando não há nenhuma
+    private int references;
+
+    public DocumentSession(final String filename) throws IOException {
+        final File file = new File(filename);
+        this.filename = filename;
+        this.lastModified = file.lastModified();
+        this.length = file.length();
+        this.reader = new PdfReader(filename);
+        this.acroFields = reader.getAcroFields();
+        this.signatureNames = acroFields.getSignatureNames();
+        this.certificationLevel = reader.getCertificationLevel();
+        this.numberOfPages = reader.getNumberOfPages();
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public PdfReader getReader() {
+        return reader;
+    }
+
+    public AcroFields getAcroFields() {
+        return acroFields;
+    }
+
+    public ArrayList<String> getSignatureNames() {
+        return signatureNames;
+    }
+
+    public int getNumberOfSignatures() {
+        return signatureNames.size();
+    }
+
+    public int getCertificationLevel() {
+        return certificationLevel;
+    }
+
+    public int getNumberOfPages() {
+        return numberOfPages;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Keeps the reader open until the matching release, even if the session
+     * is closed (or evicted from the session cache) in the meantime.
+     */
+    public synchronized void retain() {
+        references++;
+    }
+
+    public synchronized void release() {
+        references--;
+        if (closed && 0 == references) {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return true if the file on disk is no longer the one that was parsed
+     */
+    public boolean isStale() {
+        final File file = new File(filename);
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+
+    /**
+     * Closes the reader now, or when the last thread using it releases it.
+     */
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            if (0 == references) {
+                reader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.pdf.BaseFont;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Font programs of the appearance fonts, that is the fonts chosen for the
+ * signature text (not every font listed by the appearance dialog, which
+ * only needs their family names). Each file is read and parsed once (until
+ * it changes on disk), and the same font is used for every signature.
+ * Signatures only embed a subset with the glyphs that their text uses, never
+ * the whole font program. Only the last few fonts are kept, and a file that
+ * cannot be loaded is remembered so it is not parsed and logged again.
+ *
+ * @author Diogo
+ */
+public final class FontCache {
+
+    private static final int MAX_FONTS = 4;
+
+    private static final FontCache fontCache = new FontCache();
+
+    public static FontCache getFontCache() {
+        return fontCache;
+    }
+
+    private final LinkedHashMap<String, CachedFont> fonts = new LinkedHashMap<String, CachedFont>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedFont> eldest) {
+            return size() > MAX_FONTS;
+        }
+    };
+
+    private FontCache() {
+    }
+
+    /**
+     * @return the font, or null if the file does not exist or is not a font
+     * that can be embedded
+     */
+    public synchronized BaseFont getFont(final String location) {
+        if (null == location) {
+            return null;
+        }
+        final File file = new File(location);
+        if (!file.isFile()) {
+            return null;
+        }
+        final String key = file.getAbsolutePath();
+        CachedFont cached = fonts.get(key);
+        // O ficheiro pode ser substituído com o mesmo nome
+        if (null == cached || cached.lastModified != file.lastModified() || cached.length != file.length()) {
+            cached = new CachedFont(file);
+            fonts.put(key, cached);
+        }
+        return cached.font;
+    }
+
+    public synchronized void clear() {
+        fonts.clear();
+    }
+
+    private static final class CachedFont {
+
+        private final long lastModified;
+        private final long length;
+        // null se o ficheiro não pôde ser carregado
+        private final BaseFont font;
+
+        private CachedFont(final File file) {
+            lastModified = file.lastModified();
+            length = file.length();
+            BaseFont loaded = null;
+            try {
+                final byte[] program = Files.readAllBytes(file.toPath());
+                // Sem a cache global do iText, que nunca volta a ler o ficheiro
+                loaded = BaseFont.createFont(file.getAbsolutePath(), BaseFont.IDENTITY_H, BaseFont.EMBEDDED, false, program, null);
+                loaded.setSubset(true);
+            } catch (IOException | DocumentException ex) {
+                controller.Logger.getLogger().addEntry(ex);
+            }
+            font = loaded;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import com.itextpdf.text.BadElementException;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+/**
+ * Decoded signature background images, shared by the signature overlay in
+ * the editor and the appearances of the signed documents. Each file is read
+ * and decoded once (until it changes on disk). The overlay is scaled from a
+ * pyramid of half-size copies, so resizing it with a large seal only
+ * resamples an image at most twice the size of the overlay. The PDF image
+ * is also built only once.
+ *
+ * @author Diogo
+ */
+public final class ImageCache {
+
+    private static final int MAX_IMAGES = 8;
+    // Tamanho mínimo dos níveis da pirâmide
+    private static final int MIN_LEVEL_SIZE = 16;
+
+    private static final ImageCache imageCache = new ImageCache();
+
+    public static ImageCache getImageCache() {
+        return imageCache;
+    }
+
+    private final LinkedHashMap<String, CachedImage> images = new LinkedHashMap<String, CachedImage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedImage> eldest) {
+            return size() > MAX_IMAGES;
+        }
+    };
+
+    private ImageCache() {
+    }
+
+    /**
+     * @return the decoded image, or null if the file does not exist or is
+     * not an image
+     */
+    public BufferedImage getImage(final String location) {
+        final CachedImage cached = getCachedImage(location);
+        return (null == cached ? null : cached.getLevel(0));
+    }
+
+    /**
+     * @return the image scaled to width x height, or null if the file does not
+     * exist or is not an image
+     */
+    public BufferedImage getScaledImage(final String location, final int width, final int height) {
+        final CachedImage cached = getCachedImage(location);
+        return (null == cached ? null : cached.getScaled(Math.max(1, width), Math.max(1, height)));
+    }
+
+    /**
+     * @return the image to draw in a signature appearance, or null if the
+     * file does not exist or is not an image
+     */
+    public com.itextpdf.text.Image getPdfImage(final String location) {
+        final CachedImage cached = getCachedImage(location);
+        return (null == cached ? null : cached.getPdfImage());
+    }
+
+    public synchronized void clear() {
+        images.clear();
+    }
+
+    private synchronized CachedImage getCachedImage(final String location) {
+        if (null == location) {
+            return null;
+        }
+        final File file = new File(location);
+        if (!file.isFile()) {
+            return null;
+        }
+        final String key = file.getAbsolutePath();
+        CachedImage cached = images.get(key);
+        // A imagem pode ser substituída com o mesmo nome
+        if (null == cached || cached.lastModified != file.lastModified() || cached.length != file.length()) {
+            try {
+                cached = new CachedImage(file);
+            } catch (IOException ex) {
+                controller.Logger.getLogger().addEntry(ex);
+                return null;
+            }
+            if (null == cached.getLevel(0)) {
+                return null;
+            }
+            images.put(key, cached);
+        }
+        return cached;
+    }
+
+    private static final class CachedImage {
+
+        private final long lastModified;
+        private final long length;
+        private final byte[] data;
+        private final ArrayList<BufferedImage> levels = new ArrayList<>();
+        private BufferedImage scaled;
+        private com.itextpdf.text.Image pdfImage;
+        private boolean pdfImageFailed;
+
+        private CachedImage(final File file) throws IOException {
+            lastModified = file.lastModified();
+            length = file.length();
+            data = Files.readAllBytes(file.toPath());
+            final BufferedImage image = ImageIO.read(file);
+            if (null != image) {
+                levels.add(image);
+                BufferedImage level = image;
+                while (level.getWidth() / 2 >= MIN_LEVEL_SIZE && level.getHeight() / 2 >= MIN_LEVEL_SIZE) {
+                    level = resize(level, level.getWidth() / 2, level.getHeight() / 2);
+                    levels.add(level);
+                }
+            }
+        }
+
+        private BufferedImage getLevel(final int i) {
+            return (levels.isEmpty() ? null : levels.get(i));
+        }
+
+        private synchronized BufferedImage getScaled(final int width, final int height) {
+            if (null != scaled && scaled.getWidth() == width && scaled.getHeight() == height) {
+                return scaled;
+            }
+            // O nível mais pequeno que ainda cobre o tamanho pedido
+            BufferedImage source = levels.get(0);
+            for (BufferedImage level : levels) {
+                if (level.getWidth() < width || level.getHeight() < height) {
+                    break;
+                }
+                source = level;
+            }
+            scaled = resize(source, width, height);
+            return scaled;
+        }
+
+        private synchronized com.itextpdf.text.Image getPdfImage() {
+            if (null == pdfImage && !pdfImageFailed) {
+                try {
+                    pdfImage = com.itextpdf.text.Image.getInstance(data);
+                } catch (BadElementException | IOException ex) {
+                    controller.Logger.getLogger().addEntry(ex);
+                    pdfImageFailed = true;
+                }
+            }
+            return pdfImage;
+        }
+
+        private static BufferedImage resize(final BufferedImage image, final int width, final int height) {
+            final BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            final Graphics2D g = resized.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, null);
+            g.dispose();
+            return resized;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import com.itextpdf.text.pdf.security.BouncyCastleDigest;
+import com.itextpdf.text.pdf.security.ExternalDigest;
+import com.itextpdf.text.pdf.security.ExternalSignature;
+import com.itextpdf.text.pdf.security.PrivateKeySignature;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import model.CCAlias;
+
+/**
+ * Keys in a PKCS#12 or JKS file (e.g. an organisational seal). Unlike a
+ * token, the key can sign several documents at the same time.
+ *
+ * @author Diogo
+ */
+public final class KeyStoreSignatureProvider implements SignatureProvider {
+
+    public static final String PKCS12 = "PKCS12";
+    public static final String JKS = "JKS";
+
+    private final KeyStore keystore;
+    private final char[] password;
+    private final int maxConcurrentSignatures;
+    private final ConcurrentHashMap<String, PrivateKey> keys = new ConcurrentHashMap<>();
+
+    /**
+     * @param type PKCS12 or JKS; if null it is guessed from the file extension
+     * @param password the keystore password, also used for the keys
+     */
+    public KeyStoreSignatureProvider(File file, String type, char[] password) throws IOException, GeneralSecurityException {
+        this(file, type, password, Runtime.getRuntime().availableProcessors());
+    }
+
+    public KeyStoreSignatureProvider(File file, String type, char[] password, int maxConcurrentSignatures) throws IOException, GeneralSecurityException {
+        if (null == type) {
+            type = (file.getName().toLowerCase().endsWith(".jks") ? JKS : PKCS12);
+        }
+        this.keystore = KeyStore.getInstance(type);
+        try (InputStream is = new FileInputStream(file)) {
+            keystore.load(is, password);
+        }
+        this.password = password;
+        this.maxConcurrentSignatures = Math.max(1, maxConcurrentSignatures);
+    }
+
+    /**
+     * @return the aliases that have a private key and a certificate chain
+     */
+    public ArrayList<CCAlias> getAliases() throws KeyStoreException {
+        final ArrayList<CCAlias> aliasList = new ArrayList<>();
+        final Enumeration<String> aliasesEnum = keystore.aliases();
+        while (aliasesEnum.hasMoreElements()) {
+            final String alias = aliasesEnum.nextElement();
+            if (keystore.isKeyEntry(alias)) {
+                final Certificate[] certChain = keystore.getCertificateChain(alias);
+                if (null != certChain && 0 < certChain.length) {
+                    aliasList.add(new CCAlias(alias, certChain));
+                }
+            }
+        }
+        return aliasList;
+    }
+
+    @Override
+    public Certificate[] getCertificateChain(String alias) throws KeyStoreException {
+        return keystore.getCertificateChain(alias);
+    }
+
+    @Override
+    public ExternalSignature getExternalSignature(String alias, String hashAlgorithm) {
+        PrivateKey pk = keys.get(alias);
+        if (null == pk) {
+            try {
+                pk = (PrivateKey) keystore.getKey(alias, password);
+            } catch (GeneralSecurityException e) {
+                Logger.getLogger().addEntry(e);
+            }
+            if (null == pk) {
+                return null;
+            }
+            keys.put(alias, pk);
+        }
+        // Um Signature novo por assinatura, pode ser usado em paralelo
+        return new PrivateKeySignature(pk, hashAlgorithm, null);
+    }
+
+    @Override
+    public ExternalDigest getExternalDigest() {
+        return new BouncyCastleDigest();
+    }
+
+    @Override
+    public int getMaxConcurrentSignatures() {
+        return maxConcurrentSignatures;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import com.itextpdf.text.pdf.security.CertificateVerification;
+import com.itextpdf.text.pdf.security.TSAClient;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.bouncycastle.util.encoders.Base64;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Timestamps a whole batch of signatures with a single RFC 3161 request. The
+ * leaves of a Merkle tree are the hashes of the signature values of the
+ * documents, only the root is sent to the timestamp server, and each signed
+ * document gets a sidecar file (same name plus ".merkle") with its
+ * inclusion proof and the timestamp token.
+ *
+ * @author Diogo
+ */
+public final class MerkleTimestamp {
+
+    public static final String SIDECAR_EXTENSION = ".merkle";
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+    // Prefixos distintos para folhas e nós (como no RFC 6962)
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    private final byte[] leaf;
+    private final ArrayList<byte[]> path;
+    private final ArrayList<Boolean> siblingOnLeft;
+    private final byte[] token;
+
+    private MerkleTimestamp(byte[] leaf, ArrayList<byte[]> path, ArrayList<Boolean> siblingOnLeft, byte[] token) {
+        this.leaf = leaf;
+        this.path = path;
+        this.siblingOnLeft = siblingOnLeft;
+        this.token = token;
+    }
+
+    /**
+     * @param cms the signature container (/Contents) of a signature
+     * @return the leaf of the signature: the hash of its signature value
+     */
+    public static byte[] getLeaf(final byte[] cms) throws CMSException, NoSuchAlgorithmException {
+        final CMSSignedData signedData = new CMSSignedData(cms);
+        final SignerInformation signer = (SignerInformation) signedData.getSignerInfos().getSigners().iterator().next();
+        final MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
+        md.update(LEAF_PREFIX);
+        return md.digest(signer.getSignature());
+    }
+
+    /**
+     * Builds the tree over the leaves, timestamps its root and writes the
+     * sidecar of every destination.
+     *
+     * @param destinations signed documents, in the order of their leaves
+     * @param leaves results of getLeaf for each document
+     */
+    public static void timestampBatch(final List<String> destinations, final List<byte[]> leaves, final TSAClient tsaClient) throws Exception {
+        if (leaves.isEmpty()) {
+            return;
+        }
+        // Níveis da árvore, das folhas até à raiz
+        final ArrayList<ArrayList<byte[]>> levels = new ArrayList<>();
+        levels.add(new ArrayList<>(leaves));
+        while (levels.get(levels.size() - 1).size() > 1) {
+            final ArrayList<byte[]> level = levels.get(levels.size() - 1);
+            final ArrayList<byte[]> parent = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                // Nó sem par sobe sem alteração
+                parent.add(i + 1 < level.size() ? hashNode(level.get(i), level.get(i + 1)) : level.get(i));
+            }
+            levels.add(parent);
+        }
+        final byte[] root = levels.get(levels.size() - 1).get(0);
+        final byte[] token = tsaClient.getTimeStampToken(root);
+
+        for (int i = 0; i < destinations.size(); i++) {
+            final ArrayList<byte[]> path = new ArrayList<>();
+            final ArrayList<Boolean> siblingOnLeft = new ArrayList<>();
+            int index = i;
+            for (int l = 0; l < levels.size() - 1; l++) {
+                final ArrayList<byte[]> level = levels.get(l);
+                final int sibling = index ^ 1;
+                if (sibling < level.size()) {
+                    path.add(level.get(sibling));
+                    siblingOnLeft.add(sibling < index);
+                }
+                index /= 2;
+            }
+            new MerkleTimestamp(leaves.get(i), path, siblingOnLeft, token).write(new File(destinations.get(i) + SIDECAR_EXTENSION));
+        }
+    }
+
+    /**
+     * @return the proof stored next to pdfFile, or null if there is none
+     */
+    public static MerkleTimestamp read(final String pdfFile) {
+        final File file = new File(pdfFile + SIDECAR_EXTENSION);
+        if (!file.isFile()) {
+            return null;
+        }
+        final Properties properties = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            properties.load(is);
+            final ArrayList<byte[]> path = new ArrayList<>();
+            final ArrayList<Boolean> siblingOnLeft = new ArrayList<>();
+            final String pathStr = properties.getProperty("path", "");
+            for (String node : pathStr.isEmpty() ? new String[0] : pathStr.split(",")) {
+                siblingOnLeft.add(node.startsWith("L:"));
+                path.add(Hex.decode(node.substring(2)));
+            }
+            return new MerkleTimestamp(Hex.decode(properties.getProperty("leaf")), path, siblingOnLeft, Base64.decode(properties.getProperty("token")));
+        } catch (IOException | RuntimeException ex) {
+            controller.Logger.getLogger().addEntry(ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if this proof is for the signature of cms, leads to the
+     * timestamped root and the timestamp is signed by a trusted authority
+     */
+    public boolean verify(final byte[] cms, final KeyStore keystore) {
+        try {
+            if (!Arrays.equals(leaf, getLeaf(cms))) {
+                return false;
+            }
+            byte[] node = leaf;
+            for (int i = 0; i < path.size(); i++) {
+                node = (siblingOnLeft.get(i) ? hashNode(path.get(i), node) : hashNode(node, path.get(i)));
+            }
+            final TimeStampToken tst = getTimeStampToken();
+            return Arrays.equals(node, tst.getTimeStampInfo().getMessageImprintDigest()) && CertificateVerification.verifyTimestampCertificates(tst, keystore, null);
+        } catch (CMSException | NoSuchAlgorithmException | TSPException | IOException ex) {
+            return false;
+        }
+    }
+
+    public Date getTimestampDate() throws TSPException, IOException, CMSException {
+        return getTimeStampToken().getTimeStampInfo().getGenTime();
+    }
+
+    private TimeStampToken getTimeStampToken() throws TSPException, IOException, CMSException {
+        return new TimeStampToken(new CMSSignedData(token));
+    }
+
+    private void write(final File file) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("algorithm", HASH_ALGORITHM);
+        properties.setProperty("leaf", new String(Hex.encode(leaf)));
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < path.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(siblingOnLeft.get(i) ? "L:" : "R:").append(new String(Hex.encode(path.get(i))));
+        }
+        properties.setProperty("path", sb.toString());
+        properties.setProperty("token", new String(Base64.encode(token)));
+        try (OutputStream os = new FileOutputStream(file)) {
+            properties.store(os, null);
+        }
+    }
+
+    private static byte[] hashNode(final byte[] left, final byte[] right) throws NoSuchAlgorithmException {
+        final MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
+        md.update(NODE_PREFIX);
+        md.update(left);
+        return md.digest(right);
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import com.itextpdf.text.pdf.PdfEncryption;
+import com.itextpdf.text.pdf.security.CertificateUtil;
+import com.itextpdf.text.pdf.security.OCSPVerifier;
+import com.itextpdf.text.pdf.security.OcspClient;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import model.CertificateStatus;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.cert.ocsp.UnknownStatus;
+import org.bouncycastle.operator.OperatorException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Online OCSP checking shared by every validation. Responses are cached by
+ * issuer key hash and serial number until their nextUpdate, and concurrent
+ * requests for the same certificate wait for a single network round-trip.
+ * It is also the OcspClient used when signing, so a batch signed with the
+ * same certificate embeds one response fetched once.
+ *
+ * @author Diogo
+ */
+public final class OcspCache implements OcspClient {
+
+    // Respostas sem nextUpdate
+    private static final long DEFAULT_TTL = 60L * 60 * 1000;
+    // Falhas (sem rede, sem URL) não são repetidas para cada documento
+    private static final long FAILURE_TTL = 5L * 60 * 1000;
+    private static final int MAX_CONCURRENT_REQUESTS = 8;
+
+    private static final OcspCache ocspCache = new OcspCache();
+
+    public static OcspCache getOcspCache() {
+        return ocspCache;
+    }
+
+    private final ConcurrentHashMap<String, CachedResponse> responses = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Future<BasicOCSPResp>> inFlight = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor pool;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private volatile boolean enabled = true;
+    private volatile int timeout = 5000;
+    private volatile String responderUrl;
+
+    private OcspCache() {
+        pool = new ThreadPoolExecutor(MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "OcspClient");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout connect and read timeout of each request, in
+     * milliseconds
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public String getResponderUrl() {
+        return responderUrl;
+    }
+
+    /**
+     * @param responderUrl responder used for every certificate instead of the
+     * one in its AIA extension, or null
+     */
+    public void setResponderUrl(String responderUrl) {
+        this.responderUrl = responderUrl;
+    }
+
+    /**
+     * @return the number of requests actually sent to a responder
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    public void clear() {
+        responses.clear();
+    }
+
+    /**
+     * Starts (or joins) the request for the status of a certificate without
+     * waiting for it.
+     *
+     * @return the future response, which is null if the status could not be
+     * obtained
+     */
+    public Future<BasicOCSPResp> request(final X509Certificate checkCert, final X509Certificate issuerCert) {
+        return request(checkCert, issuerCert, null);
+    }
+
+    private Future<BasicOCSPResp> request(final X509Certificate checkCert, final X509Certificate issuerCert, final String url) {
+        final String key = getKey(checkCert, issuerCert);
+        final CachedResponse cached = responses.get(key);
+        if (null != cached && cached.isFresh()) {
+            return done(cached.response);
+        }
+        final FutureTask<BasicOCSPResp> task = new FutureTask<>(new Callable<BasicOCSPResp>() {
+            @Override
+            public BasicOCSPResp call() {
+                try {
+                    final BasicOCSPResp response = fetch(checkCert, issuerCert, url);
+                    responses.put(key, new CachedResponse(response, getExpiry(response, checkCert.getSerialNumber())));
+                    return response;
+                } finally {
+                    inFlight.remove(key);
+                }
+            }
+        });
+        final Future<BasicOCSPResp> running = inFlight.putIfAbsent(key, task);
+        if (null != running) {
+            return running;
+        }
+        pool.execute(task);
+        return task;
+    }
+
+    /**
+     * @return the response for the certificate, waiting for the request if
+     * needed, or null
+     */
+    public BasicOCSPResp getResponse(final X509Certificate checkCert, final X509Certificate issuerCert) {
+        return getResponse(checkCert, issuerCert, null);
+    }
+
+    private BasicOCSPResp getResponse(final X509Certificate checkCert, final X509Certificate issuerCert, final String url) {
+        if (!enabled || null == checkCert || null == issuerCert) {
+            return null;
+        }
+        try {
+            return request(checkCert, issuerCert, url).get(2L * timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+        }
+        return null;
+    }
+
+    /**
+     * @param date when the certificate was used: a revocation after this date
+     * does not invalidate the signature. Must come from a verified timestamp
+     * (never from the signer's own /M date), or be null.
+     */
+    public CertificateStatus getStatus(final X509Certificate checkCert, final X509Certificate issuerCert, final Date date) {
+        final BasicOCSPResp response = getResponse(checkCert, issuerCert);
+        if (null == response) {
+            return CertificateStatus.UNCHECKED;
+        }
+        final SingleResp singleResp = getSingleResp(response, checkCert.getSerialNumber());
+        if (null == singleResp) {
+            return CertificateStatus.UNCHECKED;
+        }
+        if (null == singleResp.getCertStatus()) {
+            return CertificateStatus.OK;
+        } else if (singleResp.getCertStatus() instanceof RevokedStatus) {
+            if (null != date && date.before(((RevokedStatus) singleResp.getCertStatus()).getRevocationTime())) {
+                return CertificateStatus.OK;
+            }
+            return CertificateStatus.REVOKED;
+        } else if (singleResp.getCertStatus() instanceof UnknownStatus) {
+            return CertificateStatus.UNKNOWN;
+        }
+        return CertificateStatus.UNCHECKED;
+    }
+
+    /**
+     * Cached response to embed in a signature, as OcspClientBouncyCastle
+     * would return it: only for a certificate that is not revoked.
+     */
+    @Override
+    public byte[] getEncoded(final X509Certificate checkCert, final X509Certificate issuerCert, final String url) {
+        final BasicOCSPResp response = getResponse(checkCert, issuerCert, url);
+        if (null == response) {
+            return null;
+        }
+        final SingleResp singleResp = getSingleResp(response, checkCert.getSerialNumber());
+        if (null == singleResp || null != singleResp.getCertStatus()) {
+            return null;
+        }
+        try {
+            return response.getEncoded();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private BasicOCSPResp fetch(final X509Certificate checkCert, final X509Certificate issuerCert, String url) {
+        if (null == url) {
+            url = (null != responderUrl ? responderUrl : CertificateUtil.getOCSPURL(checkCert));
+        }
+        if (null == url) {
+            return null;
+        }
+        try {
+            final OCSPReq request = generateOCSPRequest(issuerCert, checkCert.getSerialNumber());
+            final byte[] array = request.getEncoded();
+            requestCount.incrementAndGet();
+            final HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+            con.setConnectTimeout(timeout);
+            con.setReadTimeout(timeout);
+            con.setRequestProperty("Content-Type", "application/ocsp-request");
+            con.setRequestProperty("Accept", "application/ocsp-response");
+            con.setDoOutput(true);
+            try (DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(con.getOutputStream()))) {
+                dataOut.write(array);
+                dataOut.flush();
+            }
+            if (con.getResponseCode() / 100 != 2) {
+                return null;
+            }
+            final OCSPResp ocspResponse;
+            try (InputStream in = con.getInputStream()) {
+                ocspResponse = new OCSPResp(in);
+            }
+            if (OCSPResp.SUCCESSFUL != ocspResponse.getStatus()) {
+                return null;
+            }
+            final BasicOCSPResp response = (BasicOCSPResp) ocspResponse.getResponseObject();
+            // Assinatura do responder e validade da resposta
+            if (null == response || !new OCSPVerifier(null, null).verifyResponse(response, issuerCert)) {
+                return null;
+            }
+            return response;
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static OCSPReq generateOCSPRequest(X509Certificate issuerCert, BigInteger serialNumber) throws GeneralSecurityException, IOException, OperatorException, OCSPException {
+        final CertificateID id = new CertificateID(new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1), new JcaX509CertificateHolder(issuerCert), serialNumber);
+        final OCSPReqBuilder gen = new OCSPReqBuilder();
+        gen.addRequest(id);
+        final Extension ext = new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false, new DEROctetString(new DEROctetString(PdfEncryption.createDocumentId()).getEncoded()));
+        gen.setRequestExtensions(new Extensions(new Extension[]{ext}));
+        return gen.build();
+    }
+
+    private static SingleResp getSingleResp(final BasicOCSPResp response, final BigInteger serialNumber) {
+        for (SingleResp singleResp : response.getResponses()) {
+            if (singleResp.getCertID().getSerialNumber().equals(serialNumber)) {
+                return singleResp;
+            }
+        }
+        return null;
+    }
+
+    private static long getExpiry(final BasicOCSPResp response, final BigInteger serialNumber) {
+        final long now = System.currentTimeMillis();
+        if (null == response) {
+            return now + FAILURE_TTL;
+        }
+        final SingleResp singleResp = getSingleResp(response, serialNumber);
+        if (null == singleResp) {
+            return now + FAILURE_TTL;
+        }
+        if (null != singleResp.getNextUpdate()) {
+            return singleResp.getNextUpdate().getTime();
+        }
+        return now + DEFAULT_TTL;
+    }
+
+    private static String getKey(final X509Certificate checkCert, final X509Certificate issuerCert) {
+        try {
+            final byte[] issuerKeyHash = MessageDigest.getInstance("SHA-1").digest(issuerCert.getPublicKey().getEncoded());
+            return new String(Hex.encode(issuerKeyHash)) + ":" + checkCert.getSerialNumber().toString(16);
+        } catch (GeneralSecurityException ex) {
+            return issuerCert.getSubjectX500Principal().getName() + ":" + checkCert.getSerialNumber().toString(16);
+        }
+    }
+
+    private static Future<BasicOCSPResp> done(final BasicOCSPResp response) {
+        final FutureTask<BasicOCSPResp> task = new FutureTask<>(new Callable<BasicOCSPResp>() {
+            @Override
+            public BasicOCSPResp call() {
+                return response;
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    private static final class CachedResponse {
+
+        private final BasicOCSPResp response;
+        private final long expiry;
+
+        private CachedResponse(BasicOCSPResp response, long expiry) {
+            this.response = response;
+            this.expiry = expiry;
+        }
+
+        private boolean isFresh() {
+            return System.currentTimeMillis() < expiry;
+        }
+    }
+}
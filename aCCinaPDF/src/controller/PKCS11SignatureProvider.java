@@ -0,0 +1,89 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import com.itextpdf.text.pdf.security.ExternalDigest;
+import com.itextpdf.text.pdf.security.ExternalSignature;
+import com.itextpdf.text.pdf.security.PrivateKeySignature;
+import com.itextpdf.text.pdf.security.ProviderDigest;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import model.CCAlias;
+
+/**
+ * Keys on a PKCS#11 token (the Citizen Card), accessed through SunPKCS11.
+ *
+ * @author Diogo
+ */
+public final class PKCS11SignatureProvider implements SignatureProvider {
+
+    private final Provider provider;
+    private final KeyStore keystore;
+    private final ArrayList<CCAlias> aliases;
+
+    public PKCS11SignatureProvider(Provider provider, KeyStore keystore, ArrayList<CCAlias> aliases) {
+        this.provider = provider;
+        this.keystore = keystore;
+        this.aliases = aliases;
+    }
+
+    public KeyStore getKeystore() {
+        return keystore;
+    }
+
+    /**
+     * @return the signing aliases of the token
+     */
+    public ArrayList<CCAlias> getAliases() {
+        return aliases;
+    }
+
+    @Override
+    public Certificate[] getCertificateChain(String alias) throws KeyStoreException {
+        return keystore.getCertificateChain(alias);
+    }
+
+    @Override
+    public ExternalSignature getExternalSignature(String alias, String hashAlgorithm) {
+        try {
+            final PrivateKey pk = (PrivateKey) keystore.getKey(alias, null);
+            if (null != pk) {
+                return new PrivateKeySignature(pk, hashAlgorithm, provider.getName());
+            }
+        } catch (Exception e) {
+            Logger.getLogger().addEntry(e);
+        }
+        return null;
+    }
+
+    @Override
+    public ExternalDigest getExternalDigest() {
+        return new ProviderDigest(provider.getName());
+    }
+
+    @Override
+    public int getMaxConcurrentSignatures() {
+        return 1;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.security.ExternalSignature;
+import com.itextpdf.text.pdf.security.PdfPKCS7;
+import com.itextpdf.text.pdf.security.TSAClient;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.Collection;
+
+/**
+ * A document that has been stamped and hashed and is waiting for the token
+ * signature (and then for the signature container to be written).
+ *
+ * @author Diogo
+ */
+public final class PendingSignature {
+
+    private final String pdfPath;
+    private final String destination;
+    private final OutputStream os;
+    private final PdfSignatureAppearance appearance;
+    private final PdfPKCS7 sgn;
+    private final ExternalSignature externalSignature;
+    private final TSAClient tsaClient;
+    private final byte[] hash;
+    private final Calendar cal;
+    private final byte[] ocsp;
+    private final Collection<byte[]> crlBytes;
+    private final byte[] authenticatedAttributes;
+    private final int estimatedSize;
+    private boolean signed;
+    private byte[] encodedSignature;
+
+    PendingSignature(String pdfPath, String destination, OutputStream os, PdfSignatureAppearance appearance, PdfPKCS7 sgn, ExternalSignature externalSignature, TSAClient tsaClient, byte[] hash, Calendar cal, byte[] ocsp, Collection<byte[]> crlBytes, byte[] authenticatedAttributes, int estimatedSize) {
+        this.pdfPath = pdfPath;
+        this.destination = destination;
+        this.os = os;
+        this.appearance = appearance;
+        this.sgn = sgn;
+        this.externalSignature = externalSignature;
+        this.tsaClient = tsaClient;
+        this.hash = hash;
+        this.cal = cal;
+        this.ocsp = ocsp;
+        this.crlBytes = crlBytes;
+        this.authenticatedAttributes = authenticatedAttributes;
+        this.estimatedSize = estimatedSize;
+    }
+
+    public String getPdfPath() {
+        return pdfPath;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public boolean isSigned() {
+        return signed;
+    }
+
+    void setSigned(boolean signed) {
+        this.signed = signed;
+    }
+
+    /**
+     * @return the signature container written to the document, once it has
+     * been finished
+     */
+    public byte[] getEncodedSignature() {
+        return encodedSignature;
+    }
+
+    void setEncodedSignature(byte[] encodedSignature) {
+        this.encodedSignature = encodedSignature;
+    }
+
+    OutputStream getOutputStream() {
+        return os;
+    }
+
+    PdfSignatureAppearance getAppearance() {
+        return appearance;
+    }
+
+    PdfPKCS7 getPkcs7() {
+        return sgn;
+    }
+
+    ExternalSignature getExternalSignature() {
+        return externalSignature;
+    }
+
+    TSAClient getTsaClient() {
+        return tsaClient;
+    }
+
+    byte[] getHash() {
+        return hash;
+    }
+
+    Calendar getCalendar() {
+        return cal;
+    }
+
+    byte[] getOcsp() {
+        return ocsp;
+    }
+
+    Collection<byte[]> getCrlBytes() {
+        return crlBytes;
+    }
+
+    byte[] getAuthenticatedAttributes() {
+        return authenticatedAttributes;
+    }
+
+    int getEstimatedSize() {
+        return estimatedSize;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Rendered pages of the open documents, so going back to a page that was
+ * already seen does not render it again. The least recently used pages are
+ * dropped once the rasters take more than the memory budget (option
+ * "rasterCacheSize" of aCCinaPDF.cfg, in MB).
+ *
+ * @author Diogo
+ */
+public final class RasterCache {
+
+    private static final long DEFAULT_MAX_BYTES = Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4);
+
+    private static final RasterCache rasterCache = new RasterCache();
+
+    public static RasterCache getRasterCache() {
+        return rasterCache;
+    }
+
+    // Por ordem de acesso: o primeiro é o menos usado recentemente
+    private final LinkedHashMap<Key, BufferedImage> rasters = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private RasterCache() {
+    }
+
+    /**
+     * @return the raster, or null if it is not in the cache
+     */
+    public synchronized BufferedImage get(final Key key) {
+        final BufferedImage raster = rasters.get(key);
+        if (null == raster) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return raster;
+    }
+
+    /**
+     * Like get, but not counted in the hit rate (for lookups that are not
+     * for a page being shown).
+     */
+    public synchronized BufferedImage peek(final Key key) {
+        return rasters.get(key);
+    }
+
+    public synchronized void put(final Key key, final BufferedImage raster) {
+        final long size = getBytes(raster);
+        if (size > maxBytes) {
+            return;
+        }
+        final BufferedImage old = rasters.put(key, raster);
+        if (null != old) {
+            bytes -= getBytes(old);
+        }
+        bytes += size;
+        evict();
+    }
+
+    public synchronized void clear() {
+        rasters.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * @return the memory taken by the rasters in the cache, in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getCount() {
+        return rasters.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the fraction of lookups that found the raster, from 0 to 1
+     */
+    public synchronized double getHitRate() {
+        return (hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<Key, BufferedImage>> it = rasters.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= getBytes(it.next().getValue());
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private static long getBytes(final BufferedImage raster) {
+        final DataBuffer db = raster.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    }
+
+    /**
+     * A page of a document, rendered at a scale with a quality.
+     */
+    public static final class Key {
+
+        private final String document;
+        private final int page;
+        private final float scale;
+        private final int quality;
+
+        /**
+         * @param document identifies the document and its version (for
+         * example its path and modification time)
+         */
+        public Key(String document, int page, float scale, int quality) {
+            this.document = document;
+            this.page = page;
+            this.scale = scale;
+            this.quality = quality;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return page == other.page && quality == other.quality && Float.compare(scale, other.scale) == 0 && document.equals(other.document);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(document, page, scale, quality);
+        }
+    }
+}
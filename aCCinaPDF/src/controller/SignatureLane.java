@@ -0,0 +1,47 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import model.CCSignatureSettings;
+
+/**
+ * One signing token of a batch: the settings (with the token's alias) and
+ * the provider that holds its key.
+ *
+ * @author Diogo
+ */
+public final class SignatureLane {
+
+    private final CCSignatureSettings settings;
+    private final SignatureProvider provider;
+
+    public SignatureLane(CCSignatureSettings settings, SignatureProvider provider) {
+        this.settings = settings;
+        this.provider = provider;
+    }
+
+    public CCSignatureSettings getSettings() {
+        return settings;
+    }
+
+    public SignatureProvider getProvider() {
+        return provider;
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import exception.SignatureFailedException;
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import listener.SignatureCancelListener;
+import listener.SignatureListener;
+import model.CCSignatureSettings;
+import org.bouncycastle.cms.CMSException;
+
+/**
+ * Signs a batch of documents in three stages: a pool of workers prepares
+ * (parses, stamps and hashes) the next documents while the token signs the
+ * current one, and a writer injects the signature and writes the output (one
+ * writer per concurrent timestamp request when timestamping). At most
+ * maxInFlight documents per token are held in memory at any time. When
+ * the SignatureProvider allows concurrent signatures (software keys), a pool
+ * of signers replaces the single token stage and each signer also writes its
+ * documents.
+ *
+ * With several tokens (one SignatureLane each) every token gets its own
+ * queue of documents and, when it runs out, steals from the end of the
+ * longest queue of the others.
+ *
+ * In batch timestamp mode the documents are written without a timestamp and,
+ * at the end, the whole batch is timestamped once (see MerkleTimestamp).
+ *
+ * @author Diogo
+ */
+public class SignaturePipeline {
+
+    private final ArrayList<SignatureLane> lanes;
+    private final int prepareThreads;
+    private final int maxInFlight;
+    private final SignatureListener sl;
+    private final SignatureCancelListener scl;
+    private final ArrayList<LinkedBlockingDeque<Map.Entry<File, String>>> queues = new ArrayList<>();
+    private volatile boolean canceled;
+    private final ArrayList<String> batchDestinations = new ArrayList<>();
+    private final ArrayList<byte[]> batchLeaves = new ArrayList<>();
+    private boolean batchTimestampFailed;
+
+    public SignaturePipeline(CCSignatureSettings settings, int prepareThreads, int maxInFlight, SignatureListener sl, SignatureCancelListener scl) {
+        this(CCInstance.getInstance().getSignatureLanes(settings), prepareThreads, maxInFlight, sl, scl);
+    }
+
+    public SignaturePipeline(List<SignatureLane> lanes, int prepareThreads, int maxInFlight, SignatureListener sl, SignatureCancelListener scl) {
+        this.lanes = new ArrayList<>(lanes);
+        this.prepareThreads = Math.max(1, prepareThreads);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.sl = sl;
+        this.scl = scl;
+    }
+
+    public void cancel() {
+        canceled = true;
+    }
+
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    public int getNumberOfLanes() {
+        return lanes.size();
+    }
+
+    /**
+     * @param jobs source files and their destination paths, in signing order
+     * @return the destination paths that were signed successfully
+     */
+    public final ArrayList<String> sign(final LinkedHashMap<File, String> jobs) throws InterruptedException {
+        final List<String> signedList = Collections.synchronizedList(new ArrayList<String>());
+        batchDestinations.clear();
+        batchLeaves.clear();
+        batchTimestampFailed = false;
+        final ExecutorService preparePool = Executors.newFixedThreadPool(prepareThreads);
+        // Com carimbo temporal os pedidos à TSA correm em paralelo, fora do
+        // caminho do token
+        final boolean timestamp = !lanes.isEmpty() && lanes.get(0).getSettings().isTimestamp() && !isBatchTimestamp();
+        final ExecutorService writer = Executors.newFixedThreadPool(timestamp ? TimestampService.getTimestampService().getMaxConcurrentRequests() : 1);
+
+        // Distribuição inicial em round-robin pelos tokens
+        queues.clear();
+        for (int i = 0; i < lanes.size(); i++) {
+            queues.add(new LinkedBlockingDeque<Map.Entry<File, String>>());
+        }
+        int next = 0;
+        for (Map.Entry<File, String> job : jobs.entrySet()) {
+            queues.get(next).add(job);
+            next = (next + 1) % lanes.size();
+        }
+
+        try {
+            if (1 == lanes.size()) {
+                runLane(0, preparePool, writer, signedList);
+            } else {
+                final ExecutorService lanePool = Executors.newFixedThreadPool(lanes.size());
+                final ArrayList<Future<?>> laneFutures = new ArrayList<>();
+                for (int i = 0; i < lanes.size(); i++) {
+                    final int lane = i;
+                    laneFutures.add(lanePool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            runLane(lane, preparePool, writer, signedList);
+                            return null;
+                        }
+                    }));
+                }
+                lanePool.shutdown();
+                for (Future<?> f : laneFutures) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException ex) {
+                        if (ex.getCause() instanceof Exception) {
+                            Logger.getLogger().addEntry((Exception) ex.getCause());
+                        }
+                    }
+                }
+            }
+        } finally {
+            preparePool.shutdown();
+            writer.shutdown();
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        if (isBatchTimestamp() && !batchLeaves.isEmpty()) {
+            final CCSignatureSettings settings = lanes.get(0).getSettings();
+            try {
+                MerkleTimestamp.timestampBatch(batchDestinations, batchLeaves, TimestampService.getTimestampService().getTsaClient(settings.getTimestampServer()));
+            } catch (Exception ex) {
+                // Os documentos ficam assinados, apenas sem carimbo temporal
+                Logger.getLogger().addEntry(ex);
+                batchTimestampFailed = true;
+            }
+        }
+        return new ArrayList<>(signedList);
+    }
+
+    private void runLane(final int lane, final ExecutorService preparePool, final ExecutorService writer, final List<String> signedList) throws InterruptedException {
+        final CCSignatureSettings settings = lanes.get(lane).getSettings();
+        final SignatureProvider provider = lanes.get(lane).getProvider();
+        final int numSigners = (null == provider ? 1 : provider.getMaxConcurrentSignatures());
+        final ExecutorService signerPool = (numSigners > 1 ? Executors.newFixedThreadPool(numSigners) : null);
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final ArrayDeque<Future<PendingSignature>> prepared = new ArrayDeque<>();
+
+        try {
+            while (!canceled) {
+                // Manter os workers adiantados em relação ao token
+                Map.Entry<File, String> job;
+                while ((prepared.isEmpty() ? acquire(inFlight) : inFlight.tryAcquire())) {
+                    job = nextJob(lane);
+                    if (null == job) {
+                        inFlight.release();
+                        break;
+                    }
+                    final Map.Entry<File, String> preparedJob = job;
+                    prepared.add(preparePool.submit(new Callable<PendingSignature>() {
+                        @Override
+                        public PendingSignature call() throws Exception {
+                            return CCInstance.getInstance().prepareSignature(preparedJob.getKey().getAbsolutePath(), preparedJob.getValue(), settings, provider, sl);
+                        }
+                    }));
+                }
+                if (prepared.isEmpty()) {
+                    break;
+                }
+
+                final PendingSignature ps = getPrepared(prepared.poll());
+                if (null == ps) {
+                    inFlight.release();
+                    continue;
+                }
+
+                if (null == signerPool) {
+                    try {
+                        CCInstance.getInstance().signPendingSignature(ps);
+                    } catch (Exception e) {
+                        inFlight.release();
+                        onTokenFailure(ps, e);
+                        continue;
+                    }
+                    writer.submit(newFinishTask(ps, signedList, inFlight));
+                } else {
+                    // Chave em software: assina e escreve em paralelo
+                    signerPool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                CCInstance.getInstance().signPendingSignature(ps);
+                            } catch (Exception e) {
+                                inFlight.release();
+                                onTokenFailure(ps, e);
+                                return;
+                            }
+                            newFinishTask(ps, signedList, inFlight).run();
+                        }
+                    });
+                }
+            }
+        } finally {
+            // Documentos preparados mas não assinados (cancelamento)
+            for (Future<PendingSignature> f : prepared) {
+                final PendingSignature ps = getPrepared(f);
+                if (null != ps) {
+                    CCInstance.getInstance().discardSignature(ps);
+                }
+                // Cada documento preparado ocupava um lugar, mesmo que a preparação tenha falhado
+                inFlight.release();
+            }
+            prepared.clear();
+            if (null != signerPool) {
+                signerPool.shutdown();
+                signerPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            // Esperar pela escrita dos documentos deste token
+            inFlight.acquire(maxInFlight);
+        }
+    }
+
+    /**
+     * @return the next document of the lane's own queue or, if it is empty,
+     * the last document of the longest queue of the other lanes
+     */
+    private Map.Entry<File, String> nextJob(int lane) {
+        if (canceled) {
+            return null;
+        }
+        final Map.Entry<File, String> job = queues.get(lane).pollFirst();
+        if (null != job) {
+            return job;
+        }
+        while (true) {
+            LinkedBlockingDeque<Map.Entry<File, String>> victim = null;
+            for (LinkedBlockingDeque<Map.Entry<File, String>> queue : queues) {
+                if (!queue.isEmpty() && (null == victim || queue.size() > victim.size())) {
+                    victim = queue;
+                }
+            }
+            if (null == victim) {
+                return null;
+            }
+            final Map.Entry<File, String> stolen = victim.pollLast();
+            if (null != stolen) {
+                return stolen;
+            }
+        }
+    }
+
+    private Runnable newFinishTask(final PendingSignature ps, final List<String> signedList, final Semaphore inFlight) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (CCInstance.getInstance().finishSignature(ps, sl)) {
+                        signedList.add(ps.getDestination());
+                        if (isBatchTimestamp()) {
+                            addBatchLeaf(ps);
+                        }
+                    }
+                } catch (IOException | SignatureFailedException ex) {
+                    Logger.getLogger().addEntry(ex);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        };
+    }
+
+    private boolean isBatchTimestamp() {
+        if (lanes.isEmpty()) {
+            return false;
+        }
+        final CCSignatureSettings settings = lanes.get(0).getSettings();
+        return settings.isTimestamp() && settings.isBatchTimestamp();
+    }
+
+    private synchronized void addBatchLeaf(PendingSignature ps) {
+        try {
+            batchLeaves.add(MerkleTimestamp.getLeaf(ps.getEncodedSignature()));
+            batchDestinations.add(ps.getDestination());
+        } catch (CMSException | NoSuchAlgorithmException ex) {
+            Logger.getLogger().addEntry(ex);
+        }
+    }
+
+    /**
+     * @return true if the batch timestamp of the last sign() could not be
+     * obtained (the documents are signed, but not timestamped)
+     */
+    public boolean isBatchTimestampFailed() {
+        return batchTimestampFailed;
+    }
+
+    private boolean acquire(Semaphore semaphore) throws InterruptedException {
+        semaphore.acquire();
+        return true;
+    }
+
+    private PendingSignature getPrepared(Future<PendingSignature> f) {
+        try {
+            return f.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception && !(ex.getCause() instanceof SignatureFailedException)) {
+                Logger.getLogger().addEntry((Exception) ex.getCause());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    private synchronized void onTokenFailure(PendingSignature ps, Exception e) {
+        try {
+            CCInstance.getInstance().abortSignature(ps, e, sl);
+        } catch (SignatureFailedException ex) {
+            // Com vários tokens só se pergunta uma vez
+            if (!canceled && ex.getLocalizedMessage().equals(Bundle.getBundle().getString("userCanceled"))) {
+                if (null == scl || scl.onSignatureCanceled(ps.getPdfPath())) {
+                    canceled = true;
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger().addEntry(ex);
+        }
+    }
+}
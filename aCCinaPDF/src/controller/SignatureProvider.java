@@ -0,0 +1,52 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import com.itextpdf.text.pdf.security.ExternalDigest;
+import com.itextpdf.text.pdf.security.ExternalSignature;
+import java.security.KeyStoreException;
+import java.security.cert.Certificate;
+
+/**
+ * Source of the signing keys used by CCInstance (the Citizen Card token or a
+ * software keystore).
+ *
+ * @author Diogo
+ */
+public interface SignatureProvider {
+
+    /**
+     * @return the certificate chain of the alias, or null if there is none
+     */
+    public Certificate[] getCertificateChain(String alias) throws KeyStoreException;
+
+    /**
+     * @return a signer for the alias key, or null if the key is not available
+     */
+    public ExternalSignature getExternalSignature(String alias, String hashAlgorithm);
+
+    public ExternalDigest getExternalDigest();
+
+    /**
+     * @return how many signatures can be computed at the same time (1 for a
+     * token, which only signs one document at a time)
+     */
+    public int getMaxConcurrentSignatures();
+}
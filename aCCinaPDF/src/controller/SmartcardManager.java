@@ -0,0 +1,390 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import exception.AliasException;
+import exception.KeyStoreNotLoadedException;
+import exception.LibraryNotFoundException;
+import exception.LibraryNotLoadedException;
+import java.awt.GraphicsEnvironment;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+import javax.swing.JFileChooser;
+import model.CCAlias;
+import org.apache.commons.lang3.SystemUtils;
+import sun.security.pkcs11.SunPKCS11;
+
+/**
+ * Keeps a single SunPKCS11 provider and keystore session for the Citizen
+ * Card and caches its aliases. A daemon thread waits for a card to be
+ * inserted or removed in any reader (javax.smartcardio) and only then is the
+ * keystore reloaded. If PC/SC is not available the keystore is reloaded on every
+ * request, but the provider is still reused.
+ *
+ * @author Diogo
+ */
+public final class SmartcardManager {
+
+    private static final long WAIT_TIMEOUT = 5000;
+    private static final int MAX_SLOTS = 16;
+    private static final CallbackHandler NULL_PIN_HANDLER = new CallbackHandler() {
+
+        @Override
+        public void handle(javax.security.auth.callback.Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+            for (javax.security.auth.callback.Callback c : callbacks) {
+                if (c instanceof PasswordCallback) {
+                    ((PasswordCallback) c).setPassword(null);
+                }
+            }
+        }
+    };
+
+    private static final SmartcardManager smartcardManager = new SmartcardManager();
+
+    public static SmartcardManager getSmartcardManager() {
+        return smartcardManager;
+    }
+
+    private final Object cardLock = new Object();
+    private SunPKCS11 pkcs11Provider;
+    private PKCS11SignatureProvider signatureProvider;
+    private final ArrayList<CCAlias> aliasList = new ArrayList<>();
+    private boolean aliasesLoaded;
+    private volatile boolean monitoring;
+    private long cardVersion;
+    private boolean monitorStarted;
+    private final ArrayList<SunPKCS11> slotProviders = new ArrayList<>();
+    private ArrayList<PKCS11SignatureProvider> tokens;
+    private long tokensVersion;
+
+    private SmartcardManager() {
+    }
+
+    /**
+     * @return the aliases of the card; the keystore is only reloaded if the
+     * card changed since the last call
+     */
+    public synchronized ArrayList<CCAlias> loadAliases() throws LibraryNotLoadedException, KeyStoreNotLoadedException, CertificateException, KeyStoreException, LibraryNotFoundException, AliasException {
+        startMonitor();
+        if (aliasesLoaded && monitoring) {
+            return new ArrayList<>(aliasList);
+        }
+
+        final SunPKCS11 provider = getProvider();
+        final KeyStore pkcs11ks;
+        try {
+            pkcs11ks = KeyStore.getInstance("PKCS11", provider);
+            pkcs11ks.load(null, null);
+        } catch (Exception e) {
+            Logger.getLogger().addEntry(e);
+            throw new KeyStoreNotLoadedException(Bundle.getBundle().getString("keystoreNotLoaded"));
+        }
+
+        final ArrayList<CCAlias> newAliasList = getSigningAliases(pkcs11ks);
+
+        signatureProvider = new PKCS11SignatureProvider(provider, pkcs11ks, newAliasList);
+        aliasList.clear();
+        aliasList.addAll(newAliasList);
+        // Sem cartão não fica em cache, para voltar a tentar no próximo pedido
+        aliasesLoaded = !aliasList.isEmpty();
+        return new ArrayList<>(aliasList);
+    }
+
+    /**
+     * Opens a provider for every slot of the PKCS#11 library (the first one is
+     * the provider used by loadAliases) and returns those whose token has a
+     * signing alias. Providers are kept between calls; the keystores are only
+     * reloaded if a card changed.
+     */
+    public synchronized ArrayList<PKCS11SignatureProvider> loadTokens() throws LibraryNotLoadedException, LibraryNotFoundException {
+        startMonitor();
+        if (null != tokens && tokensVersion == getCardVersion() && monitoring) {
+            return new ArrayList<>(tokens);
+        }
+        tokensVersion = getCardVersion();
+
+        if (slotProviders.isEmpty()) {
+            slotProviders.add(getProvider());
+            final String library = getLibraryPath();
+            for (int slot = 1; slot < MAX_SLOTS; slot++) {
+                final String pkcs11config = "name = SmartCard" + slot + "\n library = " + library + "\n slotListIndex = " + slot;
+                try {
+                    final SunPKCS11 provider = new sun.security.pkcs11.SunPKCS11(new ByteArrayInputStream(pkcs11config.getBytes()));
+                    provider.setCallbackHandler(NULL_PIN_HANDLER);
+                    Security.addProvider(provider);
+                    slotProviders.add(provider);
+                } catch (Exception ex) {
+                    // Não existem mais slots
+                    break;
+                }
+            }
+        }
+
+        final ArrayList<PKCS11SignatureProvider> newTokens = new ArrayList<>();
+        for (int slot = 0; slot < slotProviders.size(); slot++) {
+            final SunPKCS11 provider = slotProviders.get(slot);
+            try {
+                final KeyStore pkcs11ks = KeyStore.getInstance("PKCS11", provider);
+                pkcs11ks.load(null, null);
+                final ArrayList<CCAlias> aliases = getSigningAliases(pkcs11ks);
+                if (!aliases.isEmpty()) {
+                    newTokens.add(new PKCS11SignatureProvider(provider, pkcs11ks, aliases));
+                }
+            } catch (Exception ex) {
+                // Slot sem cartão ou com cartão inválido
+            }
+        }
+        tokens = newTokens;
+        return new ArrayList<>(tokens);
+    }
+
+    /**
+     * @return the provider of the last keystore loaded by loadAliases
+     */
+    public synchronized PKCS11SignatureProvider getSignatureProvider() {
+        return signatureProvider;
+    }
+
+    /**
+     * Forces the keystores to be reloaded on the next loadAliases and
+     * loadTokens.
+     */
+    public synchronized void invalidate() {
+        aliasesLoaded = false;
+        tokens = null;
+    }
+
+    public long getCardVersion() {
+        synchronized (cardLock) {
+            return cardVersion;
+        }
+    }
+
+    /**
+     * Waits until a card is inserted or removed after the given version.
+     *
+     * @param version the value of getCardVersion when the caller last looked
+     * at the card
+     * @return the current card version (equal to version on timeout)
+     */
+    public long awaitCardChange(long version, long timeout) throws InterruptedException {
+        if (!monitoring) {
+            // Sem PC/SC não há eventos: o chamador volta a consultar o cartão
+            Thread.sleep(timeout);
+            return version + 1;
+        }
+        synchronized (cardLock) {
+            final long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (cardVersion == version && remaining > 0) {
+                cardLock.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return cardVersion;
+        }
+    }
+
+    private void onCardChanged() {
+        invalidate();
+        synchronized (cardLock) {
+            cardVersion++;
+            cardLock.notifyAll();
+        }
+    }
+
+    private synchronized void startMonitor() {
+        if (monitorStarted) {
+            return;
+        }
+        monitorStarted = true;
+        final List<CardTerminal> terminals;
+        try {
+            terminals = TerminalFactory.getDefault().terminals().list();
+        } catch (CardException | RuntimeException ex) {
+            // PC/SC indisponível
+            Logger.getLogger().addEntry(ex);
+            return;
+        }
+        monitoring = !terminals.isEmpty();
+        final Thread monitorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                monitor();
+            }
+        }, "SmartcardMonitor");
+        monitorThread.setDaemon(true);
+        monitorThread.start();
+    }
+
+    private void monitor() {
+        // Sempre o mesmo objeto, para o waitForChange saber o que mudou desde a última espera
+        final CardTerminals cardTerminals = TerminalFactory.getDefault().terminals();
+        while (true) {
+            try {
+                if (cardTerminals.list().isEmpty()) {
+                    // Sem leitores, não há eventos a esperar
+                    monitoring = false;
+                    Thread.sleep(WAIT_TIMEOUT);
+                    continue;
+                }
+                if (!monitoring) {
+                    monitoring = true;
+                    onCardChanged();
+                }
+                // Cartão inserido ou removido em qualquer um dos leitores
+                if (cardTerminals.waitForChange(WAIT_TIMEOUT)) {
+                    onCardChanged();
+                }
+            } catch (CardException | RuntimeException ex) {
+                // Leitor removido a meio da espera
+                monitoring = false;
+                onCardChanged();
+                try {
+                    Thread.sleep(WAIT_TIMEOUT);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    private SunPKCS11 getProvider() throws LibraryNotLoadedException, LibraryNotFoundException {
+        if (null != pkcs11Provider) {
+            return pkcs11Provider;
+        }
+        String pkcs11config = "name = SmartCard\n library = ";
+        pkcs11config += getLibraryPath();
+        final byte[] pkcs11configBytes;
+        try {
+            pkcs11configBytes = pkcs11config.getBytes();
+        } catch (Exception eiie) {
+            Logger.getLogger().addEntry(eiie);
+            throw new LibraryNotFoundException(Bundle.getBundle().getString("libraryDoesNotExist"));
+        }
+        final ByteArrayInputStream configStream = new ByteArrayInputStream(pkcs11configBytes);
+        final SunPKCS11 provider;
+        try {
+            provider = new sun.security.pkcs11.SunPKCS11(configStream);
+            provider.setCallbackHandler(NULL_PIN_HANDLER);
+        } catch (Exception eiie) {
+            Logger.getLogger().addEntry(eiie);
+            throw new LibraryNotLoadedException(Bundle.getBundle().getString("libraryNotLoaded"));
+        }
+
+        Security.addProvider(provider);
+        pkcs11Provider = provider;
+        return pkcs11Provider;
+    }
+
+    private ArrayList<CCAlias> getSigningAliases(final KeyStore pkcs11ks) throws CertificateException, KeyStoreException, AliasException {
+        final ArrayList<CCAlias> newAliasList = new ArrayList<>();
+        final Enumeration aliasesEnum = pkcs11ks.aliases();
+        while (aliasesEnum.hasMoreElements()) {
+            final String alias = (String) aliasesEnum.nextElement();
+            if (null != alias) {
+                if (alias.isEmpty()) {
+                    throw new AliasException(Bundle.getBundle().getString("blankAlias"));
+                } else {
+                    final Certificate[] certChain = pkcs11ks.getCertificateChain(alias);
+                    if (null != certChain) {
+                        if (CCAlias.ASSINATURA.equals(alias)) {
+                            if (0 == certChain.length) {
+                                throw new CertificateException(Bundle.getBundle().getString("chainInvalidFormat"));
+                            } else {
+                                final Certificate cert = certChain[0];
+                                try {
+                                    ((X509Certificate) cert).checkValidity();
+                                    if (1 <= certChain.length) {
+                                        final CCAlias ccAliasTemp = new CCAlias(alias, certChain);
+                                        newAliasList.add(ccAliasTemp);
+                                    }
+                                } catch (CertificateExpiredException cee) {
+                                    Logger.getLogger().addEntry(cee);
+                                    throw new CertificateException(Bundle.getBundle().getString("aliasCertificate") + " " + alias + " " + Bundle.getBundle().getString("expired") + "!");
+                                } catch (CertificateNotYetValidException cee) {
+                                    Logger.getLogger().addEntry(cee);
+                                    throw new CertificateException(Bundle.getBundle().getString("aliasCertificate") + " " + alias + " " + Bundle.getBundle().getString("notYetValid") + "!");
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return newAliasList;
+    }
+
+    private String getLibraryPath() throws LibraryNotLoadedException, LibraryNotFoundException {
+        String path = null;
+        if (SystemUtils.IS_OS_WINDOWS) {
+            path = System.getenv("HOMEDRIVE") + "\\windows\\system32\\pteidpkcs11.dll";
+        } else if (SystemUtils.IS_OS_LINUX) {
+            path = "/usr/local/lib/libpteidpkcs11.so";
+        } else if (SystemUtils.IS_OS_MAC_OSX) {
+            path = "/usr/local/lib/pteidpkcs11.bundle";
+        }
+
+        if (null == path) {
+            throw new LibraryNotLoadedException(Bundle.getBundle().getString("unknownOS"));
+        } else if (!new File(path).exists()) {
+            userLoadLibraryPKCS11();
+            throw new LibraryNotFoundException(Bundle.getBundle().getString("libraryNotFound"));
+        }
+        return path;
+    }
+
+    private String userLoadLibraryPKCS11() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return null;
+        }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle(Bundle.getBundle().getString("openLibrary"));
+        int userSelection = fileChooser.showSaveDialog(null);
+        if (userSelection == JFileChooser.APPROVE_OPTION) {
+            String dest = fileChooser.getSelectedFile().getAbsolutePath();
+            File file = new File(dest);
+            if (file.exists()) {
+                return dest;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import com.itextpdf.text.pdf.security.DigestAlgorithms;
+import com.itextpdf.text.pdf.security.TSAClient;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cmp.PKIFailureInfo;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampResponse;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.bouncycastle.util.encoders.Base64;
+
+/**
+ * RFC 3161 timestamp requests shared by every signature. Each timestamp
+ * server has a limit of requests in flight, failed requests are retried with
+ * an exponential backoff and the latency of every server is recorded. The
+ * HTTP connections are fully read and closed, never disconnected, so the JDK
+ * keeps them alive between requests.
+ *
+ * @author Diogo
+ */
+public final class TimestampService {
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int TOKEN_SIZE_ESTIMATE = 4096;
+
+    private static final TimestampService timestampService = new TimestampService();
+
+    public static TimestampService getTimestampService() {
+        return timestampService;
+    }
+
+    private final ConcurrentHashMap<String, Server> servers = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private volatile int maxConcurrentRequests = 4;
+    private volatile int maxRetries = 3;
+    private volatile long retryDelay = 500;
+    private volatile int timeout = 15000;
+
+    private TimestampService() {
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * @param maxConcurrentRequests requests in flight per timestamp server;
+     * applies to servers not used yet
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * @param retryDelay delay before the first retry, in milliseconds; it
+     * doubles on each further retry
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public TSAClient getTsaClient(final String url) {
+        return new PooledTSAClient(getServer(url));
+    }
+
+    /**
+     * @return the statistics of every timestamp server used so far
+     */
+    public Collection<Statistics> getStatistics() {
+        final ArrayList<Statistics> statistics = new ArrayList<>();
+        for (Server server : servers.values()) {
+            statistics.add(server.statistics);
+        }
+        return statistics;
+    }
+
+    private Server getServer(final String url) {
+        Server server = servers.get(url);
+        if (null == server) {
+            final Server created = new Server(url, maxConcurrentRequests);
+            server = servers.putIfAbsent(url, created);
+            if (null == server) {
+                server = created;
+            }
+        }
+        return server;
+    }
+
+    private final class Server {
+
+        private final String url;
+        private final Semaphore limiter;
+        private final Statistics statistics;
+
+        private Server(String url, int maxConcurrentRequests) {
+            this.url = url;
+            this.limiter = new Semaphore(maxConcurrentRequests, true);
+            this.statistics = new Statistics(url);
+        }
+
+        /**
+         * Sends the request, waiting for a free slot and retrying on network
+         * or server errors.
+         */
+        private byte[] send(final byte[] request) throws IOException, InterruptedException {
+            for (int attempt = 0;; attempt++) {
+                limiter.acquire();
+                final long start = System.nanoTime();
+                try {
+                    final byte[] response = post(request);
+                    statistics.addRequest((System.nanoTime() - start) / 1000000, true);
+                    return response;
+                } catch (IOException ex) {
+                    statistics.addRequest((System.nanoTime() - start) / 1000000, false);
+                    if (attempt >= maxRetries) {
+                        throw ex;
+                    }
+                } finally {
+                    limiter.release();
+                }
+                // Sem ocupar a vaga durante a espera
+                statistics.addRetry();
+                Thread.sleep(retryDelay << attempt);
+            }
+        }
+
+        private byte[] post(final byte[] request) throws IOException {
+            final HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+            con.setConnectTimeout(timeout);
+            con.setReadTimeout(timeout);
+            con.setDoOutput(true);
+            con.setRequestMethod("POST");
+            con.setRequestProperty("Content-Type", "application/timestamp-query");
+            con.setRequestProperty("Content-Transfer-Encoding", "binary");
+            try (OutputStream out = con.getOutputStream()) {
+                out.write(request);
+            }
+            final int code = con.getResponseCode();
+            if (code / 100 != 2) {
+                // Ler o erro até ao fim para a ligação poder ser reutilizada
+                try (InputStream err = con.getErrorStream()) {
+                    if (null != err) {
+                        readFully(err);
+                    }
+                }
+                throw new IOException(url + ": HTTP " + code);
+            }
+            final byte[] response;
+            try (InputStream in = con.getInputStream()) {
+                response = readFully(in);
+            }
+            if ("base64".equalsIgnoreCase(con.getHeaderField("Content-Transfer-Encoding"))) {
+                return Base64.decode(response);
+            }
+            return response;
+        }
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private final class PooledTSAClient implements TSAClient {
+
+        private final Server server;
+
+        private PooledTSAClient(Server server) {
+            this.server = server;
+        }
+
+        @Override
+        public int getTokenSizeEstimate() {
+            return TOKEN_SIZE_ESTIMATE;
+        }
+
+        @Override
+        public MessageDigest getMessageDigest() throws GeneralSecurityException {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        }
+
+        @Override
+        public byte[] getTimeStampToken(final byte[] imprint) throws IOException, TSPException, InterruptedException {
+            final TimeStampRequestGenerator generator = new TimeStampRequestGenerator();
+            generator.setCertReq(true);
+            final BigInteger nonce = new BigInteger(64, random);
+            final TimeStampRequest request = generator.generate(new ASN1ObjectIdentifier(DigestAlgorithms.getAllowedDigests(HASH_ALGORITHM)), imprint, nonce);
+
+            final TimeStampResponse response = new TimeStampResponse(server.send(request.getEncoded()));
+            response.validate(request);
+            final PKIFailureInfo failure = response.getFailInfo();
+            if (null != failure && 0 != failure.intValue()) {
+                throw new IOException(server.url + ": " + response.getStatusString() + " (" + failure.intValue() + ")");
+            }
+            final TimeStampToken token = response.getTimeStampToken();
+            if (null == token) {
+                throw new IOException(server.url + ": " + response.getStatusString());
+            }
+            return token.getEncoded();
+        }
+    }
+
+    /**
+     * Request counters and latency of one timestamp server.
+     */
+    public static final class Statistics {
+
+        private final String url;
+        private int requests;
+        private int failures;
+        private int retries;
+        private long totalLatency;
+        private long maxLatency;
+
+        private Statistics(String url) {
+            this.url = url;
+        }
+
+        private synchronized void addRequest(long latency, boolean ok) {
+            requests++;
+            if (!ok) {
+                failures++;
+            }
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+        }
+
+        private synchronized void addRetry() {
+            retries++;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public synchronized int getRequests() {
+            return requests;
+        }
+
+        public synchronized int getFailures() {
+            return failures;
+        }
+
+        public synchronized int getRetries() {
+            return retries;
+        }
+
+        /**
+         * @return the average latency of a request, in milliseconds
+         */
+        public synchronized double getAverageLatency() {
+            return (0 == requests ? 0 : (double) totalLatency / requests);
+        }
+
+        public synchronized long getMaxLatency() {
+            return maxLatency;
+        }
+    }
+}
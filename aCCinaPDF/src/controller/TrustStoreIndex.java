@@ -0,0 +1,195 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import java.io.File;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Trusted certificates of a keystore, indexed by subject and by subject key
+ * identifier. It is built once for a given keystore (and keystore file
+ * version), so looking up the issuer of a certificate is a map lookup
+ * instead of a scan of every trust anchor.
+ *
+ * @author Diogo
+ */
+public final class TrustStoreIndex {
+
+    private final KeyStore keystore;
+    private final int keystoreSize;
+    private final String keystorePath;
+    private final long keystoreLastModified;
+    private final ArrayList<Certificate> trustedCertificates = new ArrayList<>();
+    private final HashMap<X500Principal, ArrayList<X509Certificate>> bySubject = new HashMap<>();
+    private final HashMap<String, X509Certificate> byKeyIdentifier = new HashMap<>();
+    private final String version;
+
+    /**
+     * @param keystorePath the file the keystore was loaded from, or null for
+     * the default keystore
+     */
+    public TrustStoreIndex(KeyStore keystore, String keystorePath) throws KeyStoreException, InvalidAlgorithmParameterException {
+        this.keystore = keystore;
+        this.keystoreSize = keystore.size();
+        this.keystorePath = keystorePath;
+        this.keystoreLastModified = (null == keystorePath ? 0 : new File(keystorePath).lastModified());
+
+        final PKIXParameters params = new PKIXParameters(keystore);
+        for (final TrustAnchor ta : params.getTrustAnchors()) {
+            final X509Certificate cert = ta.getTrustedCert();
+            trustedCertificates.add(cert);
+            ArrayList<X509Certificate> list = bySubject.get(cert.getSubjectX500Principal());
+            if (null == list) {
+                list = new ArrayList<>(1);
+                bySubject.put(cert.getSubjectX500Principal(), list);
+            }
+            list.add(cert);
+            final String ski = getSubjectKeyIdentifier(cert);
+            if (null != ski && !byKeyIdentifier.containsKey(ski)) {
+                byKeyIdentifier.put(ski, cert);
+            }
+        }
+        this.version = computeVersion(trustedCertificates);
+    }
+
+    /**
+     * @return true if the index still describes the given keystore and its
+     * file has not changed since it was built
+     */
+    public boolean isCurrent(KeyStore keystore, String keystorePath) {
+        if (this.keystore != keystore) {
+            return false;
+        }
+        if (null == keystorePath ? null != this.keystorePath : !keystorePath.equals(this.keystorePath)) {
+            return false;
+        }
+        if (null != keystorePath && new File(keystorePath).lastModified() != keystoreLastModified) {
+            return false;
+        }
+        try {
+            return keystore.size() == keystoreSize;
+        } catch (KeyStoreException ex) {
+            return false;
+        }
+    }
+
+    public boolean isFileChanged() {
+        return null != keystorePath && new File(keystorePath).lastModified() != keystoreLastModified;
+    }
+
+    /**
+     * @return a fingerprint of the set of trusted certificates, which changes
+     * whenever a certificate is added to or removed from the keystore
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public ArrayList<Certificate> getTrustedCertificates() {
+        return new ArrayList<>(trustedCertificates);
+    }
+
+    /**
+     * @return the trusted certificate that issued x509c, or null
+     */
+    public X509Certificate getIssuer(X509Certificate x509c) {
+        final ArrayList<X509Certificate> candidates = bySubject.get(x509c.getIssuerX500Principal());
+        if (null == candidates) {
+            return null;
+        }
+        if (candidates.size() > 1) {
+            // Vários certificados com o mesmo nome (renovações): usar o AKI
+            final String aki = getAuthorityKeyIdentifier(x509c);
+            if (null != aki) {
+                final X509Certificate issuer = byKeyIdentifier.get(aki);
+                if (null != issuer && candidates.contains(issuer)) {
+                    return issuer;
+                }
+            }
+        }
+        return candidates.get(0);
+    }
+
+    public boolean isTrusted(X509Certificate x509c) {
+        return bySubject.containsKey(x509c.getSubjectX500Principal());
+    }
+
+    private static String computeVersion(ArrayList<Certificate> certificates) {
+        try {
+            final ArrayList<String> fingerprints = new ArrayList<>(certificates.size());
+            for (Certificate cert : certificates) {
+                fingerprints.add(new String(Hex.encode(MessageDigest.getInstance("SHA-256").digest(cert.getEncoded()))));
+            }
+            // A ordem das âncoras não é fixa
+            Collections.sort(fingerprints);
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String fingerprint : fingerprints) {
+                md.update(fingerprint.getBytes());
+            }
+            return new String(Hex.encode(md.digest()));
+        } catch (NoSuchAlgorithmException | CertificateEncodingException ex) {
+            return String.valueOf(certificates.size());
+        }
+    }
+
+    private static String getSubjectKeyIdentifier(X509Certificate cert) {
+        try {
+            final byte[] ext = cert.getExtensionValue(Extension.subjectKeyIdentifier.getId());
+            if (null != ext) {
+                return new String(Hex.encode(SubjectKeyIdentifier.getInstance(ASN1OctetString.getInstance(ext).getOctets()).getKeyIdentifier()));
+            }
+        } catch (RuntimeException ex) {
+            // Extensão mal formada, fica só indexado pelo nome
+        }
+        return null;
+    }
+
+    private static String getAuthorityKeyIdentifier(X509Certificate cert) {
+        try {
+            final byte[] ext = cert.getExtensionValue(Extension.authorityKeyIdentifier.getId());
+            if (null != ext) {
+                final byte[] keyId = AuthorityKeyIdentifier.getInstance(ASN1OctetString.getInstance(ext).getOctets()).getKeyIdentifier();
+                if (null != keyId) {
+                    return new String(Hex.encode(keyId));
+                }
+            }
+        } catch (RuntimeException ex) {
+        }
+        return null;
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package controller;
+
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfString;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import model.CertificateStatus;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * On-disk cache of signature validation outcomes. Entries are keyed by the
+ * hash of the signature /Contents and its /ByteRange and are only reused for
+ * the same file (same content hash), or for a file that extends it with new
+ * revisions, with the same trusted certificates and while the revocation
+ * information is not older than the maximum age. Changes are written to disk
+ * in batches and when the application exits.
+ *
+ * @author Diogo
+ */
+public final class ValidationCache {
+
+    private static final String CACHE_FILE = "aCCinaPDF.validation";
+    private static final int MAX_ENTRIES = 5000;
+    private static final long DEFAULT_MAX_AGE = 24L * 60 * 60 * 1000;
+    // Alterações acumuladas antes de voltar a escrever o ficheiro
+    private static final int SAVE_BATCH = 100;
+
+    private static final ValidationCache validationCache = new ValidationCache();
+
+    public static ValidationCache getValidationCache() {
+        return validationCache;
+    }
+
+    // Por ordem de acesso: a primeira é a usada há mais tempo
+    private final LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean loaded;
+    private int unsaved;
+    private long maxAge = DEFAULT_MAX_AGE;
+    // Só uma escrita do ficheiro de cada vez, fora do lock das entradas
+    private final Object saveLock = new Object();
+
+    private ValidationCache() {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, "ValidationCacheSave"));
+    }
+
+    /**
+     * @return the cache key of a signature, or null if the dictionary has no
+     * contents
+     */
+    public static String getKey(final PdfDictionary v) {
+        if (null == v) {
+            return null;
+        }
+        final PdfString contents = v.getAsString(PdfName.CONTENTS);
+        if (null == contents) {
+            return null;
+        }
+        try {
+            final String hash = new String(Hex.encode(MessageDigest.getInstance("SHA-256").digest(contents.getOriginalBytes())));
+            final PdfArray b = v.getAsArray(PdfName.BYTERANGE);
+            final String range = (null == b ? "" : Arrays.toString(b.asLongArray()).replaceAll("[\\[\\] ]", ""));
+            return hash + "_" + range;
+        } catch (NoSuchAlgorithmException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the cached outcome of a signature validated in a file with the
+     * same path, size and modification date, or null if there is none or it
+     * can no longer be trusted. The file may still have been edited in place,
+     * so getFileHash() must be compared with the hash of the file before the
+     * outcome is used.
+     */
+    public synchronized Entry get(final String key, final File file, final String trustVersion) {
+        if (null == key) {
+            return null;
+        }
+        load();
+        final Entry entry = Entry.parse(entries.get(key));
+        if (null == entry) {
+            return null;
+        }
+        if (!isCurrent(entry, trustVersion)) {
+            return null;
+        }
+        if (entry.fileLength != file.length() || entry.fileLastModified != file.lastModified() || !entry.path.equals(file.getAbsolutePath())) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @return the cached outcome of a signature validated in a shorter file,
+     * which is still valid if that file is a prefix of this one (compare
+     * getFileHash() with the hash of the first getFileLength() bytes)
+     */
+    public synchronized Entry getPrevious(final String key, final File file, final String trustVersion) {
+        if (null == key) {
+            return null;
+        }
+        load();
+        final Entry entry = Entry.parse(entries.get(key));
+        if (null == entry || !isCurrent(entry, trustVersion) || entry.fileLength >= file.length()) {
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized void put(final String key, final File file, final String fileHash, final String trustVersion, final boolean valid, final CertificateStatus ocspCertificateStatus, final CertificateStatus crlCertificateStatus, final boolean validTimestamp) {
+        if (null == key || null == fileHash) {
+            return;
+        }
+        load();
+        final Entry entry = new Entry(valid, ocspCertificateStatus, crlCertificateStatus, validTimestamp, trustVersion, System.currentTimeMillis(), file.length(), file.lastModified(), fileHash, file.getAbsolutePath());
+        entries.put(key, entry.toString());
+        changed();
+    }
+
+    /**
+     * Moves an entry to a file that extends the one it was validated in,
+     * keeping the outcome and its age.
+     */
+    public synchronized void rebind(final String key, final Entry entry, final File file, final String fileHash) {
+        if (null == key || null == fileHash) {
+            return;
+        }
+        load();
+        final Entry moved = new Entry(entry.valid, entry.ocspCertificateStatus, entry.crlCertificateStatus, entry.validTimestamp, entry.trustVersion, entry.validatedAt, file.length(), file.lastModified(), fileHash, file.getAbsolutePath());
+        if (!moved.toString().equals(entries.put(key, moved.toString()))) {
+            changed();
+        }
+    }
+
+    public void clear() {
+        synchronized (this) {
+            entries.clear();
+            loaded = true;
+            unsaved++;
+        }
+        save();
+    }
+
+    public synchronized long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @param maxAge how long, in milliseconds, the revocation status of a
+     * cached signature is considered current
+     */
+    public synchronized void setMaxAge(final long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Writes the changed entries to disk. The entries are copied under the
+     * lock and written outside it, so validations are not held up.
+     */
+    public void save() {
+        synchronized (saveLock) {
+            final Properties snapshot = new Properties();
+            synchronized (this) {
+                if (0 == unsaved) {
+                    return;
+                }
+                snapshot.putAll(entries);
+                unsaved = 0;
+            }
+            try (OutputStream os = new FileOutputStream(CACHE_FILE)) {
+                snapshot.store(os, null);
+            } catch (IOException ex) {
+                controller.Logger.getLogger().addEntry(ex);
+            }
+        }
+    }
+
+    private void changed() {
+        if (++unsaved >= SAVE_BATCH) {
+            // Num lote grande a escrita é feita por outra thread
+            final Thread saver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    save();
+                }
+            }, "ValidationCacheSave");
+            saver.setDaemon(true);
+            saver.start();
+        }
+    }
+
+    private boolean isCurrent(final Entry entry, final String trustVersion) {
+        return System.currentTimeMillis() - entry.validatedAt <= maxAge && entry.trustVersion.equals(trustVersion);
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        final File file = new File(CACHE_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        final Properties stored = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            stored.load(is);
+        } catch (IOException | IllegalArgumentException ex) {
+            // Cache corrompida: começar de novo
+            return;
+        }
+        // O ficheiro não guarda a ordem de acesso: as validadas há mais tempo saem primeiro
+        final ArrayList<Map.Entry<Object, Object>> sorted = new ArrayList<>(stored.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<Object, Object>>() {
+            @Override
+            public int compare(Map.Entry<Object, Object> e1, Map.Entry<Object, Object> e2) {
+                return Long.compare(getValidatedAt(e1), getValidatedAt(e2));
+            }
+        });
+        for (Map.Entry<Object, Object> e : sorted) {
+            entries.put((String) e.getKey(), (String) e.getValue());
+        }
+    }
+
+    private static long getValidatedAt(final Map.Entry<Object, Object> e) {
+        final Entry entry = Entry.parse((String) e.getValue());
+        return (null == entry ? Long.MIN_VALUE : entry.validatedAt);
+    }
+
+    public static final class Entry {
+
+        private final boolean valid;
+        private final CertificateStatus ocspCertificateStatus;
+        private final CertificateStatus crlCertificateStatus;
+        private final boolean validTimestamp;
+        private final String trustVersion;
+        private final long validatedAt;
+        private final long fileLength;
+        private final long fileLastModified;
+        private final String fileHash;
+        private final String path;
+
+        private Entry(boolean valid, CertificateStatus ocspCertificateStatus, CertificateStatus crlCertificateStatus, boolean validTimestamp, String trustVersion, long validatedAt, long fileLength, long fileLastModified, String fileHash, String path) {
+            this.valid = valid;
+            this.ocspCertificateStatus = ocspCertificateStatus;
+            this.crlCertificateStatus = crlCertificateStatus;
+            this.validTimestamp = validTimestamp;
+            this.trustVersion = trustVersion;
+            this.validatedAt = validatedAt;
+            this.fileLength = fileLength;
+            this.fileLastModified = fileLastModified;
+            this.fileHash = fileHash;
+            this.path = path;
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
+
+        public CertificateStatus getOcspCertificateStatus() {
+            return ocspCertificateStatus;
+        }
+
+        public CertificateStatus getCrlCertificateStatus() {
+            return crlCertificateStatus;
+        }
+
+        public boolean isValidTimestamp() {
+            return validTimestamp;
+        }
+
+        public long getValidatedAt() {
+            return validatedAt;
+        }
+
+        public long getFileLength() {
+            return fileLength;
+        }
+
+        public String getFileHash() {
+            return fileHash;
+        }
+
+        @Override
+        public String toString() {
+            return valid + ";" + ocspCertificateStatus + ";" + crlCertificateStatus + ";" + validTimestamp + ";" + trustVersion + ";" + validatedAt + ";" + fileLength + ";" + fileLastModified + ";" + fileHash + ";" + path;
+        }
+
+        private static Entry parse(final String value) {
+            if (null == value) {
+                return null;
+            }
+            final String[] fields = value.split(";", 10);
+            if (fields.length != 10) {
+                return null;
+            }
+            try {
+                return new Entry(Boolean.parseBoolean(fields[0]), CertificateStatus.valueOf(fields[1]), CertificateStatus.valueOf(fields[2]), Boolean.parseBoolean(fields[3]), fields[4], Long.parseLong(fields[5]), Long.parseLong(fields[6]), Long.parseLong(fields[7]), fields[8], fields[9]);
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        }
+    }
+}
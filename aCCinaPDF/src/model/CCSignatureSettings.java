@@ -23,7 +23,9 @@ import com.itextpdf.text.Rectangle;
 import com.itextpdf.text.pdf.PdfWriter;
 import controller.Bundle;
 import controller.CCInstance;
+import controller.RasterCache;
 import java.awt.Color;
+import java.awt.GraphicsEnvironment;
 import java.awt.Image;
 import java.io.File;
 import java.io.FileInputStream;
@@ -50,6 +52,7 @@ public final class CCSignatureSettings {
     private CCAlias ccAlias;
     private boolean visibleSignature;
     private boolean timestamp;
+    private boolean batchTimestamp;
     private String timestampServer;
     private boolean ocspClient;
     private String reason;
@@ -122,7 +125,11 @@ public final class CCSignatureSettings {
                     properties.load(new FileInputStream(configFile));
                     properties.remove("keystore");
                     Settings.getSettings().setKeystorePath(null);
-                    JOptionPane.showMessageDialog(null, Bundle.getBundle().getString("usingDefaultKeystoreError"), "", JOptionPane.WARNING_MESSAGE);
+                    if (GraphicsEnvironment.isHeadless()) {
+                        System.err.println(Bundle.getBundle().getString("usingDefaultKeystoreError"));
+                    } else {
+                        JOptionPane.showMessageDialog(null, Bundle.getBundle().getString("usingDefaultKeystoreError"), "", JOptionPane.WARNING_MESSAGE);
+                    }
                     try {
                         FileOutputStream fileOut = new FileOutputStream(configFile);
                         properties.store(fileOut, "Settings");
@@ -134,6 +141,20 @@ public final class CCSignatureSettings {
                     Settings.getSettings().setKeystorePath(keystoreStr);
                 }
             }
+            String rasterCacheSizeStr = getConfigParameter("rasterCacheSize");
+            if (rasterCacheSizeStr != null) {
+                // Opcional: um valor inválido fica no log e mantém-se o tamanho por omissão
+                try {
+                    final long rasterCacheSize = Long.parseLong(rasterCacheSizeStr.trim());
+                    if (rasterCacheSize > 0) {
+                        RasterCache.getRasterCache().setMaxBytes(rasterCacheSize * 1024 * 1024);
+                    } else {
+                        controller.Logger.getLogger().addEntry("Ignoring rasterCacheSize=" + rasterCacheSizeStr + ": must be a positive number of MB");
+                    }
+                } catch (NumberFormatException ex) {
+                    controller.Logger.getLogger().addEntry(ex);
+                }
+            }
             Settings.getSettings().setPdfVersion(pdfVersionStr);
             Settings.getSettings().setRenderImageQuality(Integer.valueOf(renderQualityStr));
             setPrefix(prefixStr);
@@ -151,11 +172,39 @@ public final class CCSignatureSettings {
         }
     }
 
+    /**
+     * Copy of the settings of another signature, without reading the
+     * configuration file again.
+     */
+    public CCSignatureSettings(CCSignatureSettings other) {
+        this.ccAlias = other.ccAlias;
+        this.visibleSignature = other.visibleSignature;
+        this.timestamp = other.timestamp;
+        this.batchTimestamp = other.batchTimestamp;
+        this.timestampServer = other.timestampServer;
+        this.ocspClient = other.ocspClient;
+        this.reason = other.reason;
+        this.location = other.location;
+        this.certificationLevel = other.certificationLevel;
+        this.text = other.text;
+        this.positionOnDocument = other.positionOnDocument;
+        this.pageNumber = other.pageNumber;
+        this.appearance = other.appearance;
+        this.prefix = other.prefix;
+        this.createdNewSettings = other.createdNewSettings;
+    }
+
     private void createConfigFile() {
-        InitialConfigDialog icd = new InitialConfigDialog(null, true);
-        icd.setLocationRelativeTo(null);
-        icd.setVisible(true);
-        Locale locale = icd.getSelectedLocale();
+        Locale locale;
+        if (GraphicsEnvironment.isHeadless()) {
+            // Sem ecrã não há diálogo de configuração inicial
+            locale = Bundle.getBundle().getLocale(Bundle.Locales.English);
+        } else {
+            InitialConfigDialog icd = new InitialConfigDialog(null, true);
+            icd.setLocationRelativeTo(null);
+            icd.setVisible(true);
+            locale = icd.getSelectedLocale();
+        }
         String fsettings = "aCCinaPDF.cfg";
         Properties propertiesWrite = new Properties();
         FileOutputStream fileOut;
@@ -212,7 +261,7 @@ public final class CCSignatureSettings {
         appearance.setFontColor(new Color(0));
         appearance.setAlign(0);
 
-        if (!createdNewSettings) {
+        if (!createdNewSettings && !GraphicsEnvironment.isHeadless()) {
             JOptionPane.showMessageDialog(null, Bundle.getBundle().getString("configFileCorrupted"), "", JOptionPane.INFORMATION_MESSAGE);
         }
     }
@@ -354,6 +403,18 @@ public final class CCSignatureSettings {
         this.timestamp = timestamp;
     }
 
+    /**
+     * @return true if a batch is timestamped with a single request over the
+     * Merkle root of its signatures instead of one request per document
+     */
+    public boolean isBatchTimestamp() {
+        return batchTimestamp;
+    }
+
+    public void setBatchTimestamp(boolean batchTimestamp) {
+        this.batchTimestamp = batchTimestamp;
+    }
+
     public boolean isVisibleSignature() {
         return visibleSignature;
     }
@@ -21,18 +21,16 @@ package model;
 
 import controller.Bundle;
 import view.ImagePanel;
+import controller.ImageCache;
 import controller.SignatureHandler;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Image;
 import java.awt.Point;
-import java.io.File;
-import java.io.IOException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -142,19 +140,14 @@ public final class Signature extends JPanel {
     }
 
     public Image getImage() {
-        try {
-            if (imageLocation != null) {
-                return ImageIO.read(new File(imageLocation));
-            }
-        } catch (IOException ex) {
-        }
-        return null;
+        return ImageCache.getImageCache().getImage(imageLocation);
     }
 
     public void refreshImage() {
-        if (null != getImage()) {
+        final Image scaled = ImageCache.getImageCache().getScaledImage(imageLocation, getWidth(), getHeight());
+        if (null != scaled) {
             setBackground(new Color(255, 255, 255, 255));
-            lblImage.setIcon(new ImageIcon(getImage().getScaledInstance(getWidth(), getHeight(), Image.SCALE_FAST)));
+            lblImage.setIcon(new ImageIcon(scaled));
             lblImage.setLocation(0, 0);
             setBorder(new LineBorder(Color.BLACK, 1));
         } else {
@@ -21,6 +21,7 @@ package view;
 
 import com.itextpdf.text.FontFactory;
 import controller.Bundle;
+import controller.FontCache;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.FontFormatException;
@@ -249,6 +250,7 @@ public class AppearanceSettingsDialog extends javax.swing.JDialog {
                 if (f.isDirectory()) {
                     getFontsFromFolder(f, fontList);
                 } else if (f.isFile() && f.getName().endsWith(".ttf")) {
+                    // Só as métricas, o tipo de letra escolhido é carregado pela FontCache
                     com.itextpdf.text.Font font = FontFactory.getFont(f.getAbsolutePath());
                     boolean contains = false;
                     for (com.itextpdf.text.Font ff : fontList.keySet()) {
@@ -269,8 +271,10 @@ public class AppearanceSettingsDialog extends javax.swing.JDialog {
 
     private void updateSettings(String font, boolean bold, boolean italic) {
         ComboBoxModel model2 = (ComboBoxModel) cbFontType.getModel();
+        final com.itextpdf.text.pdf.BaseFont baseFont = FontCache.getFontCache().getFont(font);
+        final String familyName = (null == baseFont ? FontFactory.getFont(font) : new com.itextpdf.text.Font(baseFont)).getFamilyname();
         for (int i = 0; i < model2.getSize(); i++) {
-            if (cbFontType.getItemAt(i).toString().equalsIgnoreCase(FontFactory.getFont(font).getFamilyname())) {
+            if (cbFontType.getItemAt(i).toString().equalsIgnoreCase(familyName)) {
                 cbFontType.setSelectedIndex(i);
             }
         }
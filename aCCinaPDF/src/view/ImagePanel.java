@@ -21,6 +21,7 @@ package view;
 
 import com.itextpdf.text.pdf.AcroFields;
 import controller.Bundle;
+import controller.RasterCache;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
@@ -30,6 +31,10 @@ import java.awt.event.ComponentEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -42,6 +47,7 @@ import java.io.IOException;
 import model.Settings;
 import org.apache.commons.lang3.text.WordUtils;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.rendering.ImageType;
 import org.apache.pdfbox.rendering.PDFRenderer;
 import org.icepdf.core.pobjects.Document;
@@ -63,12 +69,41 @@ public class ImagePanel extends JPanel {
 
     private Status status;
 
+    // Resolução a que as páginas são desenhadas, antes de ajustadas ao zoom
+    private static final float RENDER_SCALE = 2f;
+    // Qualidade das páginas na cache tal como o PDFBox as desenha
+    private static final int RENDER_QUALITY = 0;
+    private String documentKey;
+    // Páginas vizinhas desenhadas em segundo plano, de cada lado da atual
+    private static final int PREFETCH_PAGES = 2;
+    private static final ExecutorService prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "page-prefetch");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+    // O PDDocument não pode ser desenhado por duas threads ao mesmo tempo
+    private final Object renderLock = new Object();
+    private volatile int prefetchGeneration;
+    private final RenderScheduler scheduler = new RenderScheduler();
+    // O nome do documento e os controlos só são mostrados com a primeira página
+    private boolean documentShown;
+
     public void clear() {
+        prefetchGeneration++;
+        scheduler.cancel();
+        documentShown = false;
         bi = null;
         if (pdfDocument != null) {
-            try {
-                pdfDocument.close();
-            } catch (IOException ex) {
+            // Não fechar o documento a meio de um desenho
+            synchronized (renderLock) {
+                try {
+                    pdfDocument.close();
+                } catch (IOException ex) {
+                }
             }
         }
         pdfDocument = null;
@@ -108,52 +143,31 @@ public class ImagePanel extends JPanel {
     }
 
     private BufferedImage buf;
+    // Página desenhada em buf
+    private int bufPage;
 
     public void setDocumentAndComponents(final MainWindow mainWindow, JScrollPane parent, Document document, final JButton btnBackward, final JButton btnForward) {
         this.mainWindow = mainWindow;
         this.parent = parent;
         try {
             this.documentLocation = document.getDocumentLocation();
-            this.pdfDocument = PDDocument.load(new File(documentLocation));
+            final File file = new File(documentLocation);
+            this.documentKey = file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length();
+            prefetchGeneration++;
+            this.pdfDocument = PDDocument.load(file);
             this.pdfRenderer = new PDFRenderer(pdfDocument);
             numberOfPages = pdfDocument.getPages().getCount();
 
-            if (buf != null) {
-                buf.flush();
-                buf = null;
-            }
-
-            System.gc();
-
-            Runnable r = new Runnable() {
-
-                @Override
-                public void run() {
-                    status = Status.RENDERING;
-                    ImagePanel.this.btnPageBackward = btnBackward;
-                    ImagePanel.this.btnPageForward = btnForward;
-                    ImagePanel.this.pageNumber = 0;
-                    ImagePanel.this.scale = 1f;
-                    ImagePanel.this.svList = null;
-                    setBorder(null);
-                    JLabel lblDocName = new JLabel(documentLocation);
-                    lblDocName.setLocation(0, 0);
-                    add(lblDocName);
-                    lblDocName.setVisible(true);
-                    try {
-                        buf = pdfRenderer.renderImage(0, 2f, ImageType.RGB);
-                        mainWindow.getWorkspacePanel().showPanelComponents();
-                        status = Status.READY;
-                    } catch (IOException ex) {
-                        return;
-                    }
-                    refreshParent();
-                    refreshTitle();
-                }
-            };
+            buf = null;
+            documentShown = false;
+            status = Status.RENDERING;
+            this.btnPageBackward = btnBackward;
+            this.btnPageForward = btnForward;
+            this.pageNumber = 0;
+            this.scale = 1f;
+            this.svList = null;
 
-            Thread t = new Thread(r);
-            t.start();
+            render();
 
             if (pdfDocument == null) {
                 mainWindow.getWorkspacePanel().setDocument(null);
@@ -273,7 +287,7 @@ public class ImagePanel extends JPanel {
 
     public void setScale(float scale) {
         this.scale = scale;
-        bi = fitDocument();
+        refreshParent();
     }
 
     public float scaleUp() {
@@ -335,36 +349,183 @@ public class ImagePanel extends JPanel {
         refreshSignatureValidationListPanels();
     }
 
+    /**
+     * Asks for the current page. A page already in the raster cache is shown
+     * right away; otherwise it is rendered by the scheduler and shown when it
+     * is ready, on the event dispatch thread, unless another page was asked
+     * for in the meantime.
+     */
     private void render() {
-        buf = null;
-        Runnable r = new Runnable() {
+        final int page = pageNumber;
+        // A página pedida passa à frente das que estavam a ser antecipadas
+        prefetchGeneration++;
+        final BufferedImage cached = RasterCache.getRasterCache().get(new RasterCache.Key(documentKey, page, RENDER_SCALE, RENDER_QUALITY));
+        if (null != cached) {
+            scheduler.cancel();
+            showRenderedPage(page, cached);
+            return;
+        }
+        status = Status.RENDERING;
+        final String key = documentKey;
+        final PDFRenderer renderer = pdfRenderer;
+        scheduler.submit(new Callable<BufferedImage>() {
+            @Override
+            public BufferedImage call() throws IOException {
+                return renderPage(key, renderer, page);
+            }
+        }, new RenderScheduler.Callback<BufferedImage>() {
+            @Override
+            public void onRendered(BufferedImage rendered) {
+                showRenderedPage(page, rendered);
+            }
 
+            @Override
+            public void onFailed(Exception ex) {
+                status = Status.READY;
+                controller.Logger.getLogger().addEntry(ex);
+            }
+        });
+    }
+
+    private void showRenderedPage(final int page, final BufferedImage rendered) {
+        buf = rendered;
+        bufPage = page;
+        prefetch(page);
+        if (!documentShown) {
+            documentShown = true;
+            setBorder(null);
+            JLabel lblDocName = new JLabel(documentLocation);
+            lblDocName.setLocation(0, 0);
+            add(lblDocName);
+            lblDocName.setVisible(true);
+            mainWindow.getWorkspacePanel().showPanelComponents();
+            refreshTitle();
+        }
+        refreshParent();
+        refreshSignatureValidationListPanels();
+    }
+
+    private BufferedImage renderPage(final String document, final PDFRenderer renderer, final int page) throws IOException {
+        final RasterCache.Key key = new RasterCache.Key(document, page, RENDER_SCALE, RENDER_QUALITY);
+        // render() já contou este pedido na taxa de acerto
+        BufferedImage rendered = RasterCache.getRasterCache().peek(key);
+        if (null == rendered) {
+            synchronized (renderLock) {
+                // Enquanto esperava pelo lock pode ter sido pedida outra página
+                if (RenderScheduler.isSuperseded()) {
+                    return null;
+                }
+                // Pode ter acabado de ser antecipada
+                rendered = RasterCache.getRasterCache().peek(key);
+                if (null == rendered) {
+                    rendered = renderer.renderImage(page, RENDER_SCALE, ImageType.RGB);
+                    RasterCache.getRasterCache().put(key, rendered);
+                }
+            }
+        }
+        return rendered;
+    }
+
+    /**
+     * Renders the pages around the one being shown (page + 1, page - 1,
+     * page + 2, ...), fitted to the current zoom. The page and its
+     * neighbours take at most half of the raster cache, so the pages evicted
+     * to make room for them are the least recently seen ones. Showing
+     * another page or document cancels it.
+     */
+    private void prefetch(final int page) {
+        final int generation = ++prefetchGeneration;
+        final String key = documentKey;
+        final PDFRenderer renderer = pdfRenderer;
+        final PDDocument document = pdfDocument;
+        final int pages = numberOfPages;
+        final float fitScale = scale;
+        final int quality = Settings.getSettings().getRenderImageQuality();
+        prefetcher.submit(new Runnable() {
             @Override
             public void run() {
+                final RasterCache rasterCache = RasterCache.getRasterCache();
+                long window;
                 try {
-                    buf = pdfRenderer.renderImage(pageNumber, 2f, ImageType.RGB);
-                } catch (IOException ex) {
+                    synchronized (renderLock) {
+                        window = getPageBytes(document.getPage(page).getCropBox(), fitScale);
+                    }
+                } catch (RuntimeException ex) {
+                    // O documento pode ter sido fechado entretanto
+                    return;
+                }
+                for (int i = 1; i <= PREFETCH_PAGES; i++) {
+                    for (int p : new int[]{page + i, page - i}) {
+                        if (generation != prefetchGeneration) {
+                            return;
+                        }
+                        if (p < 0 || p >= pages) {
+                            continue;
+                        }
+                        try {
+                            final BufferedImage rendered;
+                            final PDRectangle cropBox;
+                            synchronized (renderLock) {
+                                if (generation != prefetchGeneration) {
+                                    return;
+                                }
+                                cropBox = document.getPage(p).getCropBox();
+                                // Com a janela a mais de metade da cache sairiam páginas desta mesma janela
+                                final long size = getPageBytes(cropBox, fitScale);
+                                if (window + size > rasterCache.getMaxBytes() / 2) {
+                                    return;
+                                }
+                                window += size;
+                                if (null != rasterCache.peek(new RasterCache.Key(key, p, fitScale, quality))) {
+                                    continue;
+                                }
+                                final RasterCache.Key renderKey = new RasterCache.Key(key, p, RENDER_SCALE, RENDER_QUALITY);
+                                final BufferedImage cached = rasterCache.peek(renderKey);
+                                if (null == cached) {
+                                    rendered = renderer.renderImage(p, RENDER_SCALE, ImageType.RGB);
+                                    rasterCache.put(renderKey, rendered);
+                                } else {
+                                    rendered = cached;
+                                }
+                            }
+                            final BufferedImage fitted = Scalr.resize(rendered, getScalingMethod(quality), (int) (cropBox.getWidth() * fitScale), (int) (cropBox.getHeight() * fitScale));
+                            rasterCache.put(new RasterCache.Key(key, p, fitScale, quality), fitted);
+                        } catch (IOException | RuntimeException ex) {
+                            // O documento pode ter sido fechado entretanto
+                            return;
+                        }
+                    }
                 }
             }
-        };
+        });
+    }
 
-        Thread t = new Thread(r);
-        t.start();
+    /**
+     * @return the memory taken in the raster cache by a page, rendered and
+     * fitted to the zoom
+     */
+    private static long getPageBytes(final PDRectangle cropBox, final float fitScale) {
+        final float area = cropBox.getWidth() * cropBox.getHeight();
+        return (long) (area * RENDER_SCALE * RENDER_SCALE * 4 + area * fitScale * fitScale * 4);
     }
 
-    private void refreshParent() {
-        while (true) {
-            try {
-                bi = fitDocument();
-                if (bi != null) {
-                    repaint();
-                    parent.setViewportView(ImagePanel.this);
-                    break;
-                }
-                Thread.sleep(100);
-            } catch (Exception e) {
+    private static Method getScalingMethod(int quality) {
+        if (quality == 3) {
+            return Scalr.Method.QUALITY;
+        } else if (quality == 1) {
+            return Scalr.Method.SPEED;
+        } else {
+            return Scalr.Method.BALANCED;
+        }
+    }
 
-            }
+    private void refreshParent() {
+        final BufferedImage fitted = fitDocument();
+        // Se a página ainda está a ser desenhada, é mostrada quando estiver pronta
+        if (null != fitted) {
+            bi = fitted;
+            repaint();
+            parent.setViewportView(ImagePanel.this);
         }
     }
 
@@ -411,29 +572,30 @@ public class ImagePanel extends JPanel {
 
     private BufferedImage bi;
 
+    /**
+     * @return the current page fitted to the zoom, or null while it is still
+     * being rendered
+     */
     private BufferedImage fitDocument() {
-        bi = null;
-
         if (null != pdfDocument) {
-            status = Status.RENDERING;
-            Method method;
-            if (Settings.getSettings().getRenderImageQuality() == 3) {
-                method = Scalr.Method.QUALITY;
-            } else if (Settings.getSettings().getRenderImageQuality() == 1) {
-                method = Scalr.Method.SPEED;
-            } else {
-                method = Scalr.Method.BALANCED;
-            }
-            try {
-                bi = Scalr.resize(buf, method, (int) (pdfDocument.getPage(pageNumber).getCropBox().getWidth() * scale), (int) (pdfDocument.getPage(pageNumber).getCropBox().getHeight() * scale));
-                refreshSignatureValidationListPanels();
-                status = Status.READY;
-                System.gc();
-                return bi;
-            } catch (Exception e) {
-                status = Status.READY;
+            final int quality = Settings.getSettings().getRenderImageQuality();
+            final RasterCache.Key key = new RasterCache.Key(documentKey, pageNumber, scale, quality);
+            BufferedImage fitted = RasterCache.getRasterCache().get(key);
+            if (null == fitted) {
+                if (null == buf || bufPage != pageNumber) {
+                    return null;
+                }
+                try {
+                    fitted = Scalr.resize(buf, getScalingMethod(quality), (int) (pdfDocument.getPage(pageNumber).getCropBox().getWidth() * scale), (int) (pdfDocument.getPage(pageNumber).getCropBox().getHeight() * scale));
+                    RasterCache.getRasterCache().put(key, fitted);
+                } catch (Exception e) {
+                    status = Status.READY;
+                    return null;
+                }
             }
-
+            refreshSignatureValidationListPanels();
+            status = Status.READY;
+            return fitted;
         }
         return null;
     }
@@ -21,6 +21,7 @@ package view;
 
 import com.itextpdf.text.pdf.PdfReader;
 import controller.Bundle;
+import controller.CCInstance;
 import java.awt.Desktop;
 import java.awt.Image;
 import java.awt.KeyEventDispatcher;
@@ -954,6 +955,7 @@ public class MainWindow extends javax.swing.JFrame implements KeyEventDispatcher
                         if (f.getAbsolutePath().replaceAll("\\\\+", "\\\\").equals(currFile.getAbsolutePath())) {
                             dmtn.remove(r);
                             files.remove(currFile);
+                            CCInstance.getInstance().closeDocumentSession(currFile.getAbsolutePath());
                             if (null != openedFile) {
                                 if (openedFile.equals(currFile)) {
                                     closedOpenedDocument = true;
@@ -19,21 +19,18 @@
  */
 package view;
 
-import com.itextpdf.text.DocumentException;
 import controller.Bundle;
-import controller.CCInstance;
-import exception.SignatureFailedException;
+import controller.SignaturePipeline;
 import java.io.File;
-import java.io.IOException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.table.DefaultTableModel;
+import listener.SignatureCancelListener;
 import listener.SignatureListener;
 import model.CCSignatureSettings;
 import org.apache.commons.lang3.text.WordUtils;
@@ -44,7 +41,10 @@ import org.apache.commons.lang3.text.WordUtils;
  */
 public class MultipleSignDialog extends javax.swing.JDialog {
 
+    private static final int MAX_PREPARED_AHEAD = 4;
+
     private final ArrayList<File> signedDocsList = new ArrayList<>();
+    private int numSigned = 0;
 
     /**
      * Creates new form MultipleSignStatusDialog
@@ -69,78 +69,56 @@ public class MultipleSignDialog extends javax.swing.JDialog {
         final SignatureListener sl = new SignatureListener() {
 
             @Override
-            public void onSignatureComplete(String filename, boolean valid, String message) {
-                dtm.addRow(new Object[]{filename, (valid ? Bundle.getBundle().getString("label.signatureOk") : Bundle.getBundle().getString("label.signatureFailed")) + (message.isEmpty() ? "" : " - " + message)});
+            public void onSignatureComplete(final String filename, final boolean valid, final String message) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        dtm.addRow(new Object[]{filename, (valid ? Bundle.getBundle().getString("label.signatureOk") : Bundle.getBundle().getString("label.signatureFailed")) + (message.isEmpty() ? "" : " - " + message)});
+                        if (valid) {
+                            numSigned++;
+                            jProgressBar1.setValue(numSigned);
+                            jProgressBar1.setString(Bundle.getBundle().getString("pb.signed") + ": " + numSigned + " " + Bundle.getBundle().getString("of") + " " + alFiles.size());
+                        }
+                    }
+                });
+            }
+        };
+        final SignatureCancelListener scl = new SignatureCancelListener() {
+
+            @Override
+            public boolean onSignatureCanceled(String filename) {
+                String msg = Bundle.getBundle().getString("msg.cancelSigning");
+                Object[] options = {Bundle.getBundle().getString("yes"), Bundle.getBundle().getString("no")};
+                int opt = JOptionPane.showOptionDialog(null, msg, "", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+                if (opt == JOptionPane.YES_OPTION) {
+                    jProgressBar1.setValue(jProgressBar1.getMaximum());
+                    jProgressBar1.setString(Bundle.getBundle().getString("pb.canceled"));
+                    return true;
+                }
+                return false;
             }
         };
 
         Runnable r = new Runnable() {
             @Override
             public void run() {
-                int numSigned = 0;
                 btnClose.setEnabled(false);
+                final LinkedHashMap<File, String> jobs = new LinkedHashMap<>();
                 for (File file : alFiles) {
-                    String destinationPath = "";
-                    boolean validPath = false;
-                    if (dest == null) {
-                        if (file.getName().endsWith(".pdf")) {
-                            destinationPath = file.getAbsolutePath().substring(0, file.getAbsolutePath().length() - 4).concat("(aCCinado).pdf");
-                            if (new File(destinationPath).exists()) {
-                                int num = 1;
-                                while (!validPath) {
-                                    destinationPath = file.getAbsolutePath().substring(0, file.getAbsolutePath().length() - 4).concat("(aCCinado" + num + ").pdf");
-                                    if (new File(destinationPath).exists()) {
-                                        destinationPath = file.getAbsolutePath().substring(0, file.getAbsolutePath().length() - 4).concat("(aCCinado).pdf");
-                                        num++;
-                                    } else {
-                                        break;
-                                    }
-                                }
-                            }
-                        }
-                    } else {
-                        if (file.getName().endsWith(".pdf")) {
-                            destinationPath = dest + File.separator + file.getName().substring(0, file.getName().length() - 4).concat("(aCCinado).pdf");
-                            if (new File(destinationPath).exists()) {
-                                int num = 1;
-                                while (!validPath) {
-                                    destinationPath = dest + File.separator + file.getName().substring(0, file.getName().length() - 4).concat("(aCCinado" + num + ").pdf");
-                                    if (new File(destinationPath).exists()) {
-                                        destinationPath = dest + File.separator + file.getName().substring(0, file.getName().length() - 4).concat("(aCCinado).pdf");
-                                        num++;
-                                    } else {
-                                        break;
-                                    }
-                                }
-                            }
-                        }
-                    }
-
-                    try {
-                        // Aplicar
-                        if (CCInstance.getInstance().signPdf(file.getAbsolutePath(), destinationPath, settings, sl)) {
-                            signedDocsList.add(new File(destinationPath));
-                            numSigned++;
-                            jProgressBar1.setValue(numSigned);
-                            jProgressBar1.setString(Bundle.getBundle().getString("pb.signed") + ": " + numSigned + " " + Bundle.getBundle().getString("of") + " " + alFiles.size());
+                    jobs.put(file, getDestinationPath(file, dest, jobs.values()));
+                }
 
-                        } else {
-                            //JOptionPane.showMessageDialog(this, "Erro desconhecido: ver log", "Assinatura falhou", JOptionPane.ERROR_MESSAGE);
-                        }
-                    } catch (CertificateException | IOException | DocumentException | KeyStoreException | NoSuchAlgorithmException | InvalidAlgorithmParameterException ex) {
-                        Logger.getLogger(MultipleSignDialog.class.getName()).log(Level.SEVERE, null, ex);
-                    } catch (SignatureFailedException ex) {
-                        if (ex.getLocalizedMessage().equals(Bundle.getBundle().getString("userCanceled"))) {
-                            String msg = Bundle.getBundle().getString("msg.cancelSigning");
-                            Object[] options = {Bundle.getBundle().getString("yes"), Bundle.getBundle().getString("no")};
-                            int opt = JOptionPane.showOptionDialog(null, msg, "", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
-                            if (opt == JOptionPane.YES_OPTION) {
-                                jProgressBar1.setValue(jProgressBar1.getMaximum());
-                                jProgressBar1.setString(Bundle.getBundle().getString("pb.canceled"));
-                                break;
-                            }
-                        }
+                final int numThreads = Runtime.getRuntime().availableProcessors();
+                final SignaturePipeline pipeline = new SignaturePipeline(settings, numThreads, numThreads + MAX_PREPARED_AHEAD, sl, scl);
+                try {
+                    for (String destinationPath : pipeline.sign(jobs)) {
+                        signedDocsList.add(new File(destinationPath));
                     }
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(MultipleSignDialog.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                if (pipeline.isBatchTimestampFailed()) {
+                    JOptionPane.showMessageDialog(null, Bundle.getBundle().getString("signBatchTimestampFailed"), "", JOptionPane.WARNING_MESSAGE);
                 }
                 btnClose.setEnabled(true);
             }
@@ -149,6 +127,45 @@ public class MultipleSignDialog extends javax.swing.JDialog {
         t.start();
     }
 
+    private String getDestinationPath(File file, String dest, Collection<String> assigned) {
+        String destinationPath = "";
+        boolean validPath = false;
+        if (dest == null) {
+            if (file.getName().endsWith(".pdf")) {
+                destinationPath = file.getAbsolutePath().substring(0, file.getAbsolutePath().length() - 4).concat("(aCCinado).pdf");
+                if (new File(destinationPath).exists() || assigned.contains(destinationPath)) {
+                    int num = 1;
+                    while (!validPath) {
+                        destinationPath = file.getAbsolutePath().substring(0, file.getAbsolutePath().length() - 4).concat("(aCCinado" + num + ").pdf");
+                        if (new File(destinationPath).exists() || assigned.contains(destinationPath)) {
+                            destinationPath = file.getAbsolutePath().substring(0, file.getAbsolutePath().length() - 4).concat("(aCCinado).pdf");
+                            num++;
+                        } else {
+                            break;
+                        }
+                    }
+                }
+            }
+        } else {
+            if (file.getName().endsWith(".pdf")) {
+                destinationPath = dest + File.separator + file.getName().substring(0, file.getName().length() - 4).concat("(aCCinado).pdf");
+                if (new File(destinationPath).exists() || assigned.contains(destinationPath)) {
+                    int num = 1;
+                    while (!validPath) {
+                        destinationPath = dest + File.separator + file.getName().substring(0, file.getName().length() - 4).concat("(aCCinado" + num + ").pdf");
+                        if (new File(destinationPath).exists() || assigned.contains(destinationPath)) {
+                            destinationPath = dest + File.separator + file.getName().substring(0, file.getName().length() - 4).concat("(aCCinado).pdf");
+                            num++;
+                        } else {
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return destinationPath;
+    }
+
     private void updateText() {
         jTable1.setModel(new javax.swing.table.DefaultTableModel(
                 new Object[][]{},
@@ -24,6 +24,7 @@ import com.itextpdf.text.pdf.PdfReader;
 import com.itextpdf.text.pdf.PdfSignatureAppearance;
 import controller.Bundle;
 import controller.CCInstance;
+import controller.DocumentSession;
 import exception.RevisionExtractionException;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
@@ -39,6 +40,10 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JFileChooser;
@@ -51,6 +56,7 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreeModel;
+import listener.ValidationCancelListener;
 import listener.ValidationListener;
 import model.CertificateStatus;
 import model.SignatureValidation;
@@ -94,68 +100,47 @@ public class MultipleValidationDialog extends javax.swing.JDialog {
         jtValidation.setVisible(false);
         progressBar.setString(Bundle.getBundle().getString("pb.validating") + " 1 " + Bundle.getBundle().getString("of") + " " + files.size());
         progressBar.setMaximum(files.size());
-        final ValidationListener vl = new ValidationListener() {
-            int numParsed = 1;
-
+        Runnable r = new Runnable() {
             @Override
-            public void onValidationComplete(SignatureValidation sv) {
-                Map.Entry<ValidationFileListEntry, ArrayList<SignatureValidation>> tempEntry = null;
-                while (tempEntry == null) {
-                    for (Map.Entry<ValidationFileListEntry, ArrayList<SignatureValidation>> entry : hmValidation.entrySet()) {
-                        if (entry.getKey().getFilename().equals(sv.getFilename())) {
-                            tempEntry = entry;
+            public void run() {
+                final int numThreads = Runtime.getRuntime().availableProcessors();
+                final ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+                // No máximo 2 ficheiros por worker em espera, para não carregar milhares em memória
+                final Semaphore inFlight = new Semaphore(numThreads * 2);
+                try {
+                    for (final File file : files) {
+                        inFlight.acquire();
+                        if (canceled) {
+                            inFlight.release();
                             break;
                         }
+                        pool.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    validateFile(file, dmtn, files.size());
+                                } finally {
+                                    inFlight.release();
+                                }
+                            }
+                        });
                     }
-                    if (sv.isCertification()) {
-                        if (sv.isValid()) {
-                            tempEntry.getKey().setValidationStatus(ValidationFileListEntry.ValidationStatus.CERTIFIED);
-                        } else {
-                            tempEntry.getKey().setValidationStatus(ValidationFileListEntry.ValidationStatus.INVALID);
-                        }
-                    } else if (sv.isValid()) {
-                        tempEntry.getKey().setValidationStatus(ValidationFileListEntry.ValidationStatus.ALL_OK);
-                    } else {
-                        tempEntry.getKey().setValidationStatus(ValidationFileListEntry.ValidationStatus.INVALID);
-                    }
-                    tempEntry.getValue().add(sv);
+                    pool.shutdown();
+                    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    pool.shutdownNow();
+                    Thread.currentThread().interrupt();
                 }
-            }
-        };
-
-        Runnable r = new Runnable() {
-            @Override
-            public void run() {
-                int numParsed = 0;
-                for (File file : files) {
-                    try {
-                        ArrayList<SignatureValidation> svList = new ArrayList<>();
-                        int numSigs = CCInstance.getInstance().getNumberOfSignatures(file.getAbsolutePath());
-                        ValidationFileListEntry vfle = new ValidationFileListEntry(file.getAbsolutePath(), numSigs, ValidationFileListEntry.ValidationStatus.UNKNOWN);
-                        hmValidation.put(vfle, svList);
-                        CCInstance.getInstance().validatePDF(file.getAbsolutePath(), vl);
-                        dmtn.insert(new DefaultMutableTreeNode(vfle), 0);
-                    } catch (IOException | DocumentException | GeneralSecurityException ex) {
-                        if (ex.getLocalizedMessage().contains("keystore\\aCCinaPDF_cacerts")) {
-                            JOptionPane.showMessageDialog(MultipleValidationDialog.this, Bundle.getBundle().getString("errorDefaultKeystore"), WordUtils.capitalize(Bundle.getBundle().getString("error")), JOptionPane.ERROR_MESSAGE);
-                        } else {
-                            JOptionPane.showMessageDialog(MultipleValidationDialog.this, Bundle.getBundle().getString("unknownErrorLog"), WordUtils.capitalize(Bundle.getBundle().getString("error")), JOptionPane.ERROR_MESSAGE);
-                            controller.Logger.getLogger().addEntry(ex);
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        progressBar.setString(Bundle.getBundle().getString("pb.validationComplete"));
+                        if (numParsed > 0) {
+                            jtFiles.setSelectionRow(0);
+                            btnSaveInFile.setEnabled(true);
                         }
-                        break;
                     }
-                    numParsed++;
-                    progressBar.setValue(numParsed);
-                    progressBar.setString(Bundle.getBundle().getString("pb.validating") + " " + numParsed + " " + Bundle.getBundle().getString("of") + " " + files.size());
-
-                    TreeModel tm = new DefaultTreeModel(dmtn);
-                    jtFiles.setModel(tm);
-                }
-                progressBar.setString(Bundle.getBundle().getString("pb.validationComplete"));
-                if (numParsed > 0) {
-                    jtFiles.setSelectionRow(0);
-                    btnSaveInFile.setEnabled(true);
-                }
+                });
             }
         };
 
@@ -172,6 +157,86 @@ public class MultipleValidationDialog extends javax.swing.JDialog {
         jtValidation.setCellRenderer(renderer);
     }
 
+    private volatile boolean canceled;
+    private int numParsed;
+
+    /**
+     * Validates one file on a worker thread, parsing it only once, and
+     * publishes the result in the tree (in completion order).
+     */
+    private void validateFile(final File file, final DefaultMutableTreeNode dmtn, final int numFiles) {
+        if (canceled) {
+            return;
+        }
+        final ArrayList<SignatureValidation> svList = new ArrayList<>();
+        final ValidationFileListEntry vfle;
+        DocumentSession session = null;
+        try {
+            session = new DocumentSession(file.getAbsolutePath());
+            vfle = new ValidationFileListEntry(file.getAbsolutePath(), session.getNumberOfSignatures(), ValidationFileListEntry.ValidationStatus.UNKNOWN);
+            CCInstance.getInstance().validatePDF(session, new ValidationListener() {
+                @Override
+                public void onValidationComplete(SignatureValidation sv) {
+                    if (sv.isCertification()) {
+                        if (sv.isValid()) {
+                            vfle.setValidationStatus(ValidationFileListEntry.ValidationStatus.CERTIFIED);
+                        } else {
+                            vfle.setValidationStatus(ValidationFileListEntry.ValidationStatus.INVALID);
+                        }
+                    } else if (sv.isValid()) {
+                        vfle.setValidationStatus(ValidationFileListEntry.ValidationStatus.ALL_OK);
+                    } else {
+                        vfle.setValidationStatus(ValidationFileListEntry.ValidationStatus.INVALID);
+                    }
+                    svList.add(sv);
+                }
+            }, new ValidationCancelListener() {
+                @Override
+                public boolean isValidationCanceled(String filename) {
+                    return canceled;
+                }
+            });
+        } catch (final IOException | DocumentException | GeneralSecurityException ex) {
+            if (canceled) {
+                return;
+            }
+            canceled = true;
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (ex.getLocalizedMessage().contains("keystore\\aCCinaPDF_cacerts")) {
+                        JOptionPane.showMessageDialog(MultipleValidationDialog.this, Bundle.getBundle().getString("errorDefaultKeystore"), WordUtils.capitalize(Bundle.getBundle().getString("error")), JOptionPane.ERROR_MESSAGE);
+                    } else {
+                        JOptionPane.showMessageDialog(MultipleValidationDialog.this, Bundle.getBundle().getString("unknownErrorLog"), WordUtils.capitalize(Bundle.getBundle().getString("error")), JOptionPane.ERROR_MESSAGE);
+                        controller.Logger.getLogger().addEntry(ex);
+                    }
+                }
+            });
+            return;
+        } finally {
+            if (null != session) {
+                session.close();
+            }
+        }
+        if (canceled) {
+            return;
+        }
+
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                hmValidation.put(vfle, svList);
+                dmtn.insert(new DefaultMutableTreeNode(vfle), 0);
+                numParsed++;
+                progressBar.setValue(numParsed);
+                progressBar.setString(Bundle.getBundle().getString("pb.validating") + " " + numParsed + " " + Bundle.getBundle().getString("of") + " " + numFiles);
+
+                TreeModel tm = new DefaultTreeModel(dmtn);
+                jtFiles.setModel(tm);
+            }
+        });
+    }
+
     private void updateText() {
         lbRevision.setText(WordUtils.capitalize(Bundle.getBundle().getString("revision")) + ":");
         lbDate.setText(Bundle.getBundle().getString("date") + ":");
@@ -571,6 +636,7 @@ public class MultipleValidationDialog extends javax.swing.JDialog {
     }// </editor-fold>//GEN-END:initComponents
 
     private void btnCloseActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnCloseActionPerformed
+        canceled = true;
         this.dispose();
     }//GEN-LAST:event_btnCloseActionPerformed
 
@@ -608,7 +674,7 @@ public class MultipleValidationDialog extends javax.swing.JDialog {
         }
 
         for (Map.Entry<ValidationFileListEntry, ArrayList<SignatureValidation>> entry : hmValidation.entrySet()) {
-            int numSigs = CCInstance.getInstance().getNumberOfSignatures(entry.getKey().getFilename());
+            int numSigs = entry.getKey().getNumSignatures();
             if (String.valueOf(evt.getPath().getLastPathComponent()).equals("(" + numSigs + ") " + entry.getKey().getFilename())) {
                 svList = entry.getValue();
                 break;
@@ -703,6 +769,7 @@ public class MultipleValidationDialog extends javax.swing.JDialog {
     }//GEN-LAST:event_btnShowCertificateDetailsActionPerformed
 
     private void formWindowClosing(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowClosing
+        canceled = true;
         if (window != null) {
             if (window.isVisible()) {
                 window.dispose();
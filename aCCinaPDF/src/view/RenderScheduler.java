@@ -0,0 +1,168 @@
+/*
+ *   Copyright 2015 Luís Diogo Zambujo, Micael Sousa Farinha and Miguel Frade
+ *
+ *   This file is part of aCCinaPDF.
+ *
+ *   aCCinaPDF is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero Affero General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   aCCinaPDF is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with aCCinaPDF.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package view;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import javax.swing.SwingUtilities;
+
+/**
+ * Runs the page renders of one viewport on a small pool shared by all of
+ * them. A new request supersedes the previous ones of the same viewport:
+ * those still queued are cancelled, a running task can give up early by
+ * checking isSuperseded(), and a result that arrives after it was superseded
+ * is dropped. So however fast the pages are flipped, there is at most one
+ * render running and one waiting per viewport, and only the result of the
+ * last request is ever shown.
+ *
+ * @author Diogo
+ */
+public final class RenderScheduler {
+
+    private static final int THREADS = 2;
+
+    private static final ExecutorService pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private int count;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "render-" + (++count));
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Receives, in the event dispatch thread, the result of a request that
+     * was not superseded.
+     */
+    public interface Callback<T> {
+
+        void onRendered(T result);
+
+        void onFailed(Exception ex);
+    }
+
+    // Pedido que a thread do pool está a correr
+    private static final ThreadLocal<Request<?>> running = new ThreadLocal<>();
+
+    private int generation;
+    private Request<?> current;
+
+    /**
+     * @return true if the request run by the calling thread was superseded,
+     * so a task can check it before its expensive part (for instance after
+     * waiting for a lock)
+     */
+    public static boolean isSuperseded() {
+        final Request<?> request = running.get();
+        return null != request && !request.scheduler().isCurrent(request.requestGeneration);
+    }
+
+    /**
+     * @return a future that is cancelled if the request is superseded
+     */
+    public <T> Future<T> submit(final Callable<T> task) {
+        return submit(task, null);
+    }
+
+    /**
+     * @param callback called in the event dispatch thread when the render is
+     * done, unless the request was superseded
+     */
+    public synchronized <T> Future<T> submit(final Callable<T> task, final Callback<T> callback) {
+        cancel();
+        final Request<T> request = new Request<>(task, callback, generation);
+        current = request;
+        pool.execute(request);
+        return request;
+    }
+
+    /**
+     * Supersedes every pending request of this viewport.
+     */
+    public synchronized void cancel() {
+        generation++;
+        if (null != current) {
+            current.cancel(false);
+            current = null;
+        }
+    }
+
+    private synchronized boolean isCurrent(final int requestGeneration) {
+        return requestGeneration == generation;
+    }
+
+    private final class Request<T> extends FutureTask<T> {
+
+        private final Callback<T> callback;
+        private final int requestGeneration;
+
+        private Request(final Callable<T> task, final Callback<T> callback, final int requestGeneration) {
+            super(task);
+            this.callback = callback;
+            this.requestGeneration = requestGeneration;
+        }
+
+        @Override
+        public void run() {
+            // Pedidos ultrapassados que ainda não começaram não chegam a correr
+            if (isCurrent(requestGeneration)) {
+                running.set(this);
+                try {
+                    super.run();
+                } finally {
+                    running.remove();
+                }
+            } else {
+                cancel(false);
+            }
+        }
+
+        private RenderScheduler scheduler() {
+            return RenderScheduler.this;
+        }
+
+        @Override
+        protected void done() {
+            if (null == callback || isCancelled()) {
+                return;
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCurrent(requestGeneration)) {
+                        return;
+                    }
+                    try {
+                        callback.onRendered(get());
+                    } catch (InterruptedException | ExecutionException ex) {
+                        callback.onFailed(ex);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -25,6 +25,8 @@ import com.itextpdf.text.pdf.PdfReader;
 import com.itextpdf.text.pdf.PdfSignatureAppearance;
 import controller.Bundle;
 import controller.CCInstance;
+import controller.RasterCache;
+import controller.SmartcardManager;
 import exception.AliasException;
 import exception.KeyStoreNotLoadedException;
 import exception.LibraryNotFoundException;
@@ -57,9 +59,8 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Iterator;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JFileChooser;
@@ -78,6 +79,7 @@ import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
 import javax.swing.tree.TreeSelectionModel;
 import listener.SignatureClickListener;
+import listener.ValidationCancelListener;
 import listener.ValidationListener;
 import model.CCAlias;
 import model.CCSignatureSettings;
@@ -247,7 +249,7 @@ public final class WorkspacePanel extends javax.swing.JPanel implements Signatur
         btnZoomIn.setEnabled(true);
         btnZoomOut.setEnabled(true);
         topToolbar.setVisible(true);
-        lblTotalPageNumber.setText(" " + Bundle.getBundle().getString("of") + " " + document.getNumberOfPages() + " - Zoom: " + ((int) (imagePanel.getScale() * 100)) + "%");
+        refreshBottomLabel();
         bottomToolbar.setVisible(true);
         status = Status.READY;
         btnPageBackward.setEnabled(false);
@@ -454,12 +456,15 @@ public final class WorkspacePanel extends javax.swing.JPanel implements Signatur
                                     progressBar.setValue(progressBar.getValue() + 1);
                                     numParsed++;
                                     progressBar.setString(Bundle.getBundle().getString("pb.validatingSignature") + " " + numParsed + " " + Bundle.getBundle().getString("of") + " " + numSigs);
-                                } else {
-                                    CCInstance.getInstance().setValidating(false);
                                 }
                             }
                         };
-                        CCInstance.getInstance().validatePDF(document.getDocumentLocation(), vl);
+                        CCInstance.getInstance().validatePDF(document.getDocumentLocation(), vl, new ValidationCancelListener() {
+                            @Override
+                            public boolean isValidationCanceled(String filename) {
+                                return !status.equals(Status.VALIDATING);
+                            }
+                        });
                         status = Status.READY;
                         jtValidation.setVisible(true);
                         progressBar.setString(Bundle.getBundle().getString("pb.validationCompleted"));
@@ -487,20 +492,36 @@ public final class WorkspacePanel extends javax.swing.JPanel implements Signatur
         t.start();
     }
 
-    private ScheduledExecutorService exec;
+    private static final long CARD_WAIT_TIMEOUT = 1000;
+    private ExecutorService exec;
 
     private void startSmartcardSearchThread(final boolean clear) {
         //rightPanel.setVisible(false);
-        exec = Executors.newSingleThreadScheduledExecutor();
-        exec.scheduleAtFixedRate(new Runnable() {
+        final ExecutorService searchExec = Executors.newSingleThreadExecutor();
+        exec = searchExec;
+        searchExec.submit(new Runnable() {
             @Override
             public void run() {
-                if (!populateComboBox(clear)) {
-                    mainWindow.getLoadingDialog().dispose();
-                    exec.shutdown();
+                long cardVersion = SmartcardManager.getSmartcardManager().getCardVersion();
+                while (!searchExec.isShutdown()) {
+                    if (!populateComboBox(clear)) {
+                        mainWindow.getLoadingDialog().dispose();
+                        searchExec.shutdown();
+                        return;
+                    }
+                    // Só volta a ler o cartão quando este for inserido ou removido
+                    try {
+                        long version = cardVersion;
+                        while (version == cardVersion && !searchExec.isShutdown()) {
+                            version = SmartcardManager.getSmartcardManager().awaitCardChange(cardVersion, CARD_WAIT_TIMEOUT);
+                        }
+                        cardVersion = version;
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
                 }
             }
-        }, 0, 1, TimeUnit.SECONDS);
+        });
         mainWindow.createLoadingWindow().showDialog(LoadingDialog.LoadingType.SMARTCARD_SEARCHING);
         if (!mainWindow.getLoadingDialog().isVisible()) {
             if (null != exec) {
@@ -520,7 +541,7 @@ public final class WorkspacePanel extends javax.swing.JPanel implements Signatur
             if (list.isEmpty()) {
                 return false;
             }
-            tempCCAlias = CCInstance.getInstance().loadKeyStoreAndAliases().get(0);
+            tempCCAlias = list.get(0);
             ArrayList<CCAlias> aList = CCInstance.getInstance().getAliasList();
             if (!aList.isEmpty()) {
                 Iterator<CCAlias> ccai = aList.iterator();
@@ -1536,6 +1557,8 @@ public final class WorkspacePanel extends javax.swing.JPanel implements Signatur
 
     private void refreshBottomLabel() {
         lblTotalPageNumber.setText(" " + Bundle.getBundle().getString("of") + " " + document.getNumberOfPages() + " - Zoom: " + ((int) (imagePanel.getScale() * 100)) + "%");
+        final RasterCache rasterCache = RasterCache.getRasterCache();
+        lblTotalPageNumber.setToolTipText(String.format(Bundle.getBundle().getString("rasterCacheStatistics"), rasterCache.getCount(), rasterCache.getBytes() / (1024.0 * 1024), rasterCache.getMaxBytes() / (1024.0 * 1024), rasterCache.getHitRate() * 100));
     }
 
     public void pageUp() {
@@ -1780,6 +1803,13 @@ public final class WorkspacePanel extends javax.swing.JPanel implements Signatur
                     return;
                 }
 
+                settings.setBatchTimestamp(false);
+                if (settings.isTimestamp() && toSignList.size() > 1) {
+                    Object[] batchOptions = {Bundle.getBundle().getString("yes"), Bundle.getBundle().getString("no")};
+                    int opt = JOptionPane.showOptionDialog(null, Bundle.getBundle().getString("msg.batchTimestamp"), "", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, batchOptions, batchOptions[1]);
+                    settings.setBatchTimestamp(opt == JOptionPane.YES_OPTION);
+                }
+
                 MultipleSignDialog msd = new MultipleSignDialog(mainWindow, true, toSignList, settings, dest);
                 msd.setLocationRelativeTo(null);
                 msd.setVisible(true);